@@ -0,0 +1,133 @@
+package facetracker.donlingliang.facetrack;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes preview frames to a {@link FrameRecorder} on a thread of its own, so that recording
+ * costs the camera thread a copy of the planes rather than a write to storage.
+ * <p/>
+ * Frames are packed into one of a fixed number of direct buffers and queued for the writer
+ * thread.  When every buffer is still waiting to be written, {@link #record} drops the frame
+ * instead of waiting.  Written buffers go back to the camera thread through a second
+ * {@link FrameRing}, so neither side takes a lock and nothing is allocated once the buffers fit
+ * the frame size.
+ */
+class AsyncFrameRecorder implements Runnable {
+    private static final String TAG = "AsyncFrameRecorder";
+
+    private static final class PackedFrame {
+        ByteBuffer mData;
+        int mWidth;
+        int mHeight;
+        long mTimestampNanos;
+    }
+
+    private final FrameRecorder mRecorder;
+    // Packed frames, from the camera thread to the writer thread.
+    private final FrameRing<PackedFrame> mQueued;
+    // Written frames, from the writer thread back to the camera thread.
+    private final FrameRing<PackedFrame> mFree;
+    private Thread mThread;
+    private volatile boolean mFailed;
+
+    /**
+     * @param depth the number of frames that may wait to be written
+     */
+    AsyncFrameRecorder(FrameRecorder recorder, int depth) {
+        mRecorder = recorder;
+        mQueued = new FrameRing<>(depth, FrameRing.DROP_NEWEST);
+        mFree = new FrameRing<>(depth, FrameRing.DROP_NEWEST);
+        for (int i = 0; i < depth; i++) {
+            mFree.offer(new PackedFrame());
+        }
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    void start() {
+        mQueued.open();
+        mThread = new Thread(this, "FrameRecorder");
+        mThread.start();
+    }
+
+    /**
+     * Writes the frames still queued, stops the writer thread and flushes the recording.  The
+     * recorder itself is left open.
+     */
+    void stop() {
+        mQueued.close();
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Interrupted while stopping the frame recorder.");
+            }
+            mThread = null;
+        }
+        try {
+            mRecorder.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Frame recording failed; no longer recording.", e);
+            mFailed = true;
+        }
+    }
+
+    /**
+     * Queues a copy of a frame for writing.  Called from a single thread.  Does nothing once a
+     * write has failed.
+     *
+     * @return false if the frame was dropped because the writer has fallen behind
+     */
+    boolean record(YuvPlanes planes, long timestampNanos) {
+        if (mFailed) {
+            return true;
+        }
+        PackedFrame frame = mFree.poll();
+        if (frame == null) {
+            return false;
+        }
+        int size = FrameRecorder.packedSize(planes.getWidth(), planes.getHeight());
+        if (frame.mData == null || frame.mData.capacity() < size) {
+            frame.mData = ByteBuffer.allocateDirect(size);
+        }
+        FrameRecorder.pack(planes, frame.mData);
+        frame.mWidth = planes.getWidth();
+        frame.mHeight = planes.getHeight();
+        frame.mTimestampNanos = timestampNanos;
+        // Never full: there are only as many frames as the ring holds.
+        mQueued.offer(frame);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        PackedFrame frame;
+        while ((frame = mQueued.take()) != null) {
+            write(frame);
+        }
+        // Stopped; the camera thread is gone, so what is left is all there is.
+        while ((frame = mQueued.poll()) != null) {
+            write(frame);
+        }
+    }
+
+    private void write(PackedFrame frame) {
+        if (!mFailed) {
+            Tracing.beginSection("AsyncFrameRecorder.write");
+            try {
+                mRecorder.writePackedFrame(frame.mData, frame.mWidth, frame.mHeight,
+                        frame.mTimestampNanos);
+            } catch (IOException e) {
+                Log.e(TAG, "Frame recording failed; no longer recording.", e);
+                mFailed = true;
+            } finally {
+                Tracing.endSection();
+            }
+        }
+        mFree.offer(frame);
+    }
+}
@@ -75,6 +75,32 @@ public class Camera2Source {
     public static final int CAMERA_AF_CONTINUOUS_VIDEO = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO;
     private int mFocusMode = CAMERA_AF_AUTO;
 
+    public static final int DETECTION_SCALE_HALF = 2;
+    public static final int DETECTION_SCALE_QUARTER = 4;
+    public static final int DETECTION_SCALE_EIGHTH = 8;
+    private int mDetectionScale = DETECTION_SCALE_QUARTER;
+
+    public static final int DOWNSCALE_NEAREST = YuvConverter.FILTER_NEAREST;
+    public static final int DOWNSCALE_BOX = YuvConverter.FILTER_BOX;
+    private int mDownscaleFilter = DOWNSCALE_NEAREST;
+    private boolean mLumaOnly = false;
+    private int mRoiScanInterval = 0;
+    private int mMotionThreshold = 0;
+    private int mMotionRefreshInterval = 0;
+    private int mTrackDetectionInterval = 0;
+    private FaceTrackCallback mFaceTrackCallback;
+    private boolean mParallelConversion = false;
+    // Packs frames on the camera background thread and writes them on a thread of its own.
+    private AsyncFrameRecorder mFrameRecorder;
+    // Frames that may wait to be recorded, about 3 MB each at 1080p.
+    private static final int RECORD_DEPTH = 3;
+
+    public static final int PIPELINE_DROP_OLDEST = FrameRing.DROP_OLDEST;
+    public static final int PIPELINE_DROP_NEWEST = FrameRing.DROP_NEWEST;
+    private int mConvertDepth = 2;
+    private int mDetectDepth = 1;
+    private int mDropPolicy = PIPELINE_DROP_OLDEST;
+
     private static final String TAG = "Camera2Source";
     private static final double maxRatioTolerance = 0.1;
     private Context mContext;
@@ -166,6 +192,16 @@ public class Camera2Source {
      */
     private static final int MAX_PREVIEW_HEIGHT = 1080;
 
+    private int mMaxPreviewWidth = MAX_PREVIEW_WIDTH;
+    private int mMaxPreviewHeight = MAX_PREVIEW_HEIGHT;
+
+    /**
+     * Output size, in pixels, from which frame conversion is split across cores.  Below it the
+     * fork/join overhead outweighs the gain (see ConversionBenchmark); the default quarter scale
+     * thumbnail of a 1080p preview stays single threaded.
+     */
+    private static final int PARALLEL_THRESHOLD_PIXELS = 640 * 480;
+
     private TextureView mTextureView;
 
     private ShutterCallback mShutterCallback;
@@ -196,6 +232,108 @@ public class Camera2Source {
     private Thread mProcessingThread;
     private FrameProcessingRunnable mFrameProcessor;
 
+    /**
+     * Dedicated thread and associated runnable for converting preview images into detection
+     * frames, fed by the image reader through a ring of acquired images.
+     */
+    private Thread mConvertThread;
+    private ConvertRunnable mConverter;
+    private FrameRing<Image> mImageRing;
+
+    /**
+     * Counters of the acquire, convert and detect stages.
+     */
+    private StageStats mAcquireStats;
+    private StageStats mConvertStats;
+    private StageStats mDetectStats;
+
+    /**
+     * Recycles the direct NV21 detection buffers so that nothing is allocated per preview frame.
+     * A buffer goes from the camera planes straight to the detector and back to this pool.
+     */
+    private final FrameBufferPool mFrameBufferPool = new FrameBufferPool(6, 3);
+
+    /**
+     * Reusable view over the planes of the preview {@link Image} being converted.  Only touched
+     * from the convert thread.
+     */
+    private final YuvPlanes mPreviewPlanes = new YuvPlanes();
+
+    /**
+     * Reusable view over the full preview {@link Image} being recorded.  Only touched from the
+     * camera background thread.
+     */
+    private final YuvPlanes mRecordPlanes = new YuvPlanes();
+
+    /**
+     * Splits frame conversion across the big cores when parallel conversion is enabled, or null
+     * to convert on the convert thread alone.
+     */
+    private ParallelYuvConverter mParallelConverter;
+
+    /**
+     * Decides which part of each preview frame is converted when region of interest mode is
+     * enabled, or null to always convert the whole frame.
+     */
+    private RoiController mRoiController;
+
+    /**
+     * Paces detection and adapts the detection scale to the measured detector latency, or null
+     * to detect every frame at the configured scale.
+     */
+    private DetectionGovernor mGovernor;
+
+    /**
+     * Skips detection on frames that did not change since the last detected one, or null to
+     * detect every converted frame.  Only touched from the convert thread.
+     */
+    private MotionGate mMotionGate;
+
+    /**
+     * Follows the reported face on the frames between two detections in detect-then-track mode,
+     * or null to detect every frame.  Only touched from the processing thread.
+     */
+    private TemplateTracker mTemplateTracker;
+
+    /**
+     * Last face reported through {@link #reportFace}, in detector frame coordinates, used to seed
+     * the template tracker; guarded by mReportRegion.
+     */
+    private final float[] mReportedFace = new float[4];
+    private int mReportedFaceFrameId = -1;
+
+    /**
+     * Runs detection on several frames at once with a pool of detectors, or null to detect on the
+     * processing thread with the detector given to the builder.
+     */
+    private DetectorPool<?> mDetectorPool;
+
+    /**
+     * Region of the preview frame being converted.  Only touched from the convert thread.
+     */
+    private final FrameRegion mNextRegion = new FrameRegion();
+
+    /**
+     * Scratch region used when a detection is reported back through {@link #reportFace}.
+     */
+    private final FrameRegion mReportRegion = new FrameRegion();
+
+    /**
+     * Difference between the elapsedRealtimeNanos() time base and the time base of the sensor
+     * timestamps of preview images; zero when the sensor already uses the former.
+     */
+    private volatile long mSensorTimestampOffsetNanos;
+
+    /**
+     * Counters and histograms describing the frames that went through the pipeline.
+     */
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+
+    /**
+     * Latency of the frames at the checkpoints of the pipeline, from their capture.
+     */
+    private final LatencyRecorder mLatencyRecorder = mMetrics.getLatencyRecorder();
+
     /**
      * An {@link ImageReader} that handles still image capture.
      */
@@ -266,6 +404,8 @@ public class Camera2Source {
 
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
+            // Every request sent with this callback targets the preview image reader.
+            mMetrics.recordProduced();
             process(result);
         }
 
@@ -273,17 +413,65 @@ public class Camera2Source {
 
     /**
      * This is a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * preview frame is ready to be processed.
+     * preview frame is ready to be processed.  This is the acquire stage of the pipeline: it only
+     * queues the image for the convert stage, so that the camera background thread is free for
+     * the next image while the previous one is being converted.
      */
     private final ImageReader.OnImageAvailableListener mOnPreviewAvailableListener = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader reader) {
+            Tracing.beginSection("Camera2Source.acquire");
+            try {
+                acquire(reader);
+            } finally {
+                Tracing.endSection();
+            }
+        }
+
+        private void acquire(ImageReader reader) {
+            long startNanos = System.nanoTime();
             Image mImage = reader.acquireNextImage();
             if (mImage == null) {
                 return;
             }
-            mFrameProcessor.setNextFrame(convertYUV420888ToNV21(mImage));
-            mImage.close();
+            mMetrics.recordAcquired();
+            if (mFrameRecorder != null) {
+                // Before the governor, so that a replay sees every frame the camera produced.
+                recordFrame(mImage, mImage.getTimestamp() + mSensorTimestampOffsetNanos);
+            }
+            if (mGovernor != null && !mGovernor.onFrameArrival(startNanos)) {
+                // Too early for another detection; skip the frame before converting it.
+                mImage.close();
+                mMetrics.recordSkip();
+                Tracing.instant("Camera2Source.skip");
+                return;
+            }
+            Image dropped = mImageRing.offer(mImage);
+            if (dropped != null) {
+                dropped.close();
+                mMetrics.recordConvertDrop();
+                Tracing.instant("Camera2Source.convertDrop");
+            }
+            long busyNanos = System.nanoTime() - startNanos;
+            mAcquireStats.recordBusy(busyNanos);
+            mMetrics.recordStage(PipelineMetrics.STAGE_ACQUIRE, busyNanos);
+        }
+
+        private void recordFrame(Image image, long captureNanos) {
+            Image.Plane[] planes = image.getPlanes();
+            mRecordPlanes.set(image.getWidth(), image.getHeight(),
+                    planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride());
+            Tracing.beginSection("Camera2Source.record");
+            try {
+                if (!mFrameRecorder.record(mRecordPlanes, captureNanos)) {
+                    mMetrics.recordRecordingDrop();
+                    Tracing.instant("Camera2Source.recordingDrop");
+                }
+            } finally {
+                mRecordPlanes.clear();
+                Tracing.endSection();
+            }
         }
     };
 
@@ -299,6 +487,7 @@ public class Camera2Source {
     private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
         @Override
         public void onOpened(CameraDevice cameraDevice) {
+            Tracing.instant("Camera2Source.opened");
             mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
             createCameraPreviewSession();
@@ -306,6 +495,7 @@ public class Camera2Source {
 
         @Override
         public void onDisconnected(CameraDevice cameraDevice) {
+            Tracing.instant("Camera2Source.disconnected");
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
@@ -313,6 +503,7 @@ public class Camera2Source {
 
         @Override
         public void onError(CameraDevice cameraDevice, int error) {
+            Tracing.instant("Camera2Source.error");
             mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
@@ -357,6 +548,185 @@ public class Camera2Source {
             return this;
         }
 
+        /**
+         * Sets how much preview frames are reduced before being handed to the detector (one of
+         * {@link #DETECTION_SCALE_HALF}, {@link #DETECTION_SCALE_QUARTER} or
+         * {@link #DETECTION_SCALE_EIGHTH}). Default: quarter.
+         */
+        public Builder setDetectionScale(int scale) {
+            if ((scale != DETECTION_SCALE_HALF) && (scale != DETECTION_SCALE_QUARTER) && (scale != DETECTION_SCALE_EIGHTH)) {
+                throw new IllegalArgumentException("Invalid detection scale: " + scale);
+            }
+            mCameraSource.mDetectionScale = scale;
+            return this;
+        }
+
+        /**
+         * Sets how the detection thumbnail is computed: {@link #DOWNSCALE_NEAREST} samples one
+         * pixel per block, {@link #DOWNSCALE_BOX} averages the whole block (luma and chroma),
+         * which avoids aliasing and keeps small thumbnails usable in fast detector mode.
+         * Default: nearest.
+         */
+        public Builder setDownscaleFilter(int filter) {
+            if ((filter != DOWNSCALE_NEAREST) && (filter != DOWNSCALE_BOX)) {
+                throw new IllegalArgumentException("Invalid downscale filter: " + filter);
+            }
+            mCameraSource.mDownscaleFilter = filter;
+            return this;
+        }
+
+        /**
+         * Enables the grayscale pipeline: only the Y plane of each preview frame is read and the
+         * detector receives a luma-only buffer, which is all the face detector looks at.
+         * Default: false.
+         */
+        public Builder setLumaOnly(boolean lumaOnly) {
+            mCameraSource.mLumaOnly = lumaOnly;
+            return this;
+        }
+
+        /**
+         * Enables region of interest mode: once a face has been reported through
+         * {@link Camera2Source#reportFace}, only a padded window around it is converted, at twice
+         * the resolution of the detection scale, and a full frame is scanned again every
+         * {@code fullScanInterval} frames or when the face is lost.  Detections must then be
+         * mapped with {@link Camera2Source#getFrameRegion}.  Default: 0 (disabled).
+         */
+        public Builder setRegionOfInterest(int fullScanInterval) {
+            if (fullScanInterval < 0) {
+                throw new IllegalArgumentException("Invalid full scan interval: " + fullScanInterval);
+            }
+            mCameraSource.mRoiScanInterval = fullScanInterval;
+            return this;
+        }
+
+        /**
+         * Enables motion gating: a converted frame whose luma differs from the last detected frame
+         * by less than {@code threshold} on average (out of 255, on a coarse grid of samples) is
+         * not detected, and the previous detection result stands.  A frame is detected anyway
+         * after {@code refreshInterval} consecutive skips.  Default: 0 (disabled).
+         */
+        public Builder setMotionGate(int threshold, int refreshInterval) {
+            if (threshold < 0 || threshold > 255) {
+                throw new IllegalArgumentException("Invalid motion threshold: " + threshold);
+            }
+            if (refreshInterval < 0) {
+                throw new IllegalArgumentException("Invalid refresh interval: " + refreshInterval);
+            }
+            mCameraSource.mMotionThreshold = threshold;
+            mCameraSource.mMotionRefreshInterval = refreshInterval;
+            return this;
+        }
+
+        /**
+         * Enables detect-then-track mode: the detector runs on one frame out of
+         * {@code detectionInterval}, and on the frames in between the face reported through
+         * {@link Camera2Source#reportFace} is followed by a cheap template tracker, whose
+         * positions go to {@code callback}.  A frame goes through the detector anyway as soon as
+         * the tracker loses the face.  Cannot be combined with a detector pool.
+         * Default: 0 (disabled).
+         */
+        public Builder setDetectThenTrack(int detectionInterval, FaceTrackCallback callback) {
+            if (detectionInterval < 0) {
+                throw new IllegalArgumentException("Invalid detection interval: " + detectionInterval);
+            }
+            if (detectionInterval > 0 && callback == null) {
+                throw new IllegalArgumentException("No face track callback supplied.");
+            }
+            mCameraSource.mTrackDetectionInterval = detectionInterval;
+            mCameraSource.mFaceTrackCallback = callback;
+            return this;
+        }
+
+        /**
+         * Writes every acquired preview frame, before the governor skips any, at full preview
+         * resolution and with its capture time, to {@code recorder}, e.g. to replay a session on a
+         * build machine with {@link ReplayDriver}.  The acquire stage only copies the planes;
+         * a thread of its own writes them.  Frames arriving while three frames wait to be
+         * written are left out, and counted by {@link PipelineMetrics#getRecordingDropped()}.
+         * The caller closes the recorder after {@link Camera2Source#stop()}.  Default: null (no
+         * recording).
+         */
+        public Builder setFrameRecorder(FrameRecorder recorder) {
+            mCameraSource.mFrameRecorder = recorder != null
+                    ? new AsyncFrameRecorder(recorder, RECORD_DEPTH) : null;
+            return this;
+        }
+
+        /**
+         * Splits the conversion of large frames by row stripes across the big cores of the
+         * device.  Frames whose detection buffer is small stay on the convert thread.
+         * Default: false.
+         */
+        public Builder setParallelConversion(boolean parallel) {
+            mCameraSource.mParallelConversion = parallel;
+            return this;
+        }
+
+        /**
+         * Raises or lowers the maximum preview (and analysis) size.  Sizes above the default
+         * 1920x1080 are not guaranteed by the Camera2 API and may exceed the camera bus bandwidth.
+         */
+        public Builder setMaxPreviewSize(int width, int height) {
+            if (width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("Invalid max preview size: " + width + "x" + height);
+            }
+            mCameraSource.mMaxPreviewWidth = width;
+            mCameraSource.mMaxPreviewHeight = height;
+            return this;
+        }
+
+        /**
+         * Paces detection with the given governor: frames are skipped so that the detector stays
+         * within the governor's target rate and CPU budget, and full frames are reduced further
+         * than the detection scale while the detector cannot keep up.  Detections must then be
+         * mapped with {@link Camera2Source#getFrameRegion}.  Default: null (every frame is
+         * detected).
+         */
+        public Builder setDetectionGovernor(DetectionGovernor governor) {
+            mCameraSource.mGovernor = governor;
+            return this;
+        }
+
+        /**
+         * Detects frames with a pool of detectors instead of the builder's detector alone:
+         * consecutive frames go to different workers and the results reach the pool's processor
+         * in frame order, with ids that hold across workers.  The builder's detector should be
+         * the pool's primary detector.  Default: null (a single detector).
+         */
+        public Builder setDetectorPool(DetectorPool<?> pool) {
+            mCameraSource.mDetectorPool = pool;
+            return this;
+        }
+
+        /**
+         * Sets the depth of the rings between the pipeline stages: how many acquired images may
+         * wait for conversion, and how many converted frames may wait for detection.  Deeper
+         * rings absorb bursts at the cost of latency; the image reader holds two images more than
+         * the convert depth.  Default: 2 and 1.
+         */
+        public Builder setPipelineDepth(int convertDepth, int detectDepth) {
+            if (convertDepth < 1 || detectDepth < 1) {
+                throw new IllegalArgumentException("Invalid pipeline depth: " + convertDepth + ", " + detectDepth);
+            }
+            mCameraSource.mConvertDepth = convertDepth;
+            mCameraSource.mDetectDepth = detectDepth;
+            return this;
+        }
+
+        /**
+         * Sets which frame a full pipeline ring drops: {@link #PIPELINE_DROP_OLDEST} keeps the
+         * detector on the most recent frames, {@link #PIPELINE_DROP_NEWEST} keeps the queued
+         * frames and rejects new ones.  Default: drop oldest.
+         */
+        public Builder setDropPolicy(int policy) {
+            if ((policy != PIPELINE_DROP_OLDEST) && (policy != PIPELINE_DROP_NEWEST)) {
+                throw new IllegalArgumentException("Invalid drop policy: " + policy);
+            }
+            mCameraSource.mDropPolicy = policy;
+            return this;
+        }
+
         /**
          * Sets the camera to use (either {@link #CAMERA_FACING_BACK} or
          * {@link #CAMERA_FACING_FRONT}). Default: back facing.
@@ -373,7 +743,33 @@ public class Camera2Source {
          * Creates an instance of the camera source.
          */
         public Camera2Source build() {
+            if (mCameraSource.mParallelConversion) {
+                mCameraSource.mParallelConverter = new ParallelYuvConverter(
+                        ParallelYuvConverter.bigCoreCount(), PARALLEL_THRESHOLD_PIXELS);
+            }
+            if (mCameraSource.mRoiScanInterval > 0) {
+                int roiFactor = Math.max(1, mCameraSource.mDetectionScale / 2);
+                mCameraSource.mRoiController = new RoiController(mCameraSource.mRoiScanInterval, roiFactor);
+            }
+            if (mCameraSource.mTrackDetectionInterval > 0) {
+                if (mCameraSource.mDetectorPool != null) {
+                    throw new IllegalArgumentException("Detect-then-track mode requires a single detector.");
+                }
+                mCameraSource.mTemplateTracker = new TemplateTracker();
+            }
+            if (mCameraSource.mMotionRefreshInterval > 0) {
+                mCameraSource.mMotionGate = new MotionGate(mCameraSource.mMotionThreshold,
+                        mCameraSource.mMotionRefreshInterval);
+            }
+            if (mCameraSource.mGovernor != null) {
+                mCameraSource.mGovernor.reset(mCameraSource.mDetectionScale);
+            }
+            mCameraSource.mImageRing = new FrameRing<>(mCameraSource.mConvertDepth, mCameraSource.mDropPolicy);
+            mCameraSource.mAcquireStats = new StageStats("acquire", null);
+            mCameraSource.mConvertStats = new StageStats("convert", mCameraSource.mImageRing);
+            mCameraSource.mConverter = mCameraSource.new ConvertRunnable();
             mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
+            mCameraSource.mMetrics.setStageStats(mCameraSource.getStageStats());
             return mCameraSource;
         }
     }
@@ -406,6 +802,18 @@ public class Camera2Source {
         void onPictureTaken(Image image);
     }
 
+    /**
+     * Callback interface used to supply the face positions found by the template tracker in
+     * detect-then-track mode, between two detections.
+     */
+    public interface FaceTrackCallback {
+        /**
+         * Called on the processing thread with the face bounds on a tracked frame, in the overlay's
+         * coordinate system (see {@link FrameRegion#mapX}), and the timestamp of that frame.
+         */
+        void onFaceTracked(float x, float y, float width, float height, long timestampMillis);
+    }
+
     // AUTO FOCUS PART HAS BEEN OMITTED FOR SIMPLICITY.
 
     //==============================================================================================
@@ -441,8 +849,13 @@ public class Camera2Source {
      * Stops the camera and releases the resources of the camera and underlying detector.
      */
     public void release() {
-        mFrameProcessor.release();
+        // Stopped first, so that neither the processing thread nor the detector workers are still
+        // using the detectors being released.
         stop();
+        mFrameProcessor.release();
+        if (mParallelConverter != null) {
+            mParallelConverter.shutdown();
+        }
     }
 
     /**
@@ -454,7 +867,17 @@ public class Camera2Source {
      * resources of the underlying detector.
      */
     public void stop() {
+        Tracing.beginSection("Camera2Source.stop");
         try {
+            mImageRing.close();
+            if (mConvertThread != null) {
+                try {
+                    mConvertThread.join();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Frame conversion thread interrupted on release.");
+                }
+                mConvertThread = null;
+            }
             mFrameProcessor.setActive(false);
             if (mProcessingThread != null) {
                 try {
@@ -467,6 +890,10 @@ public class Camera2Source {
                 }
                 mProcessingThread = null;
             }
+            if (mDetectorPool != null) {
+                // Only once the processing thread is gone, so that nothing is dispatched anymore.
+                mDetectorPool.stop();
+            }
             mCameraOpenCloseLock.acquire();
             if (null != mCaptureSession) {
                 mCaptureSession.close();
@@ -477,6 +904,13 @@ public class Camera2Source {
                 mCameraDevice = null;
             }
             if (null != mImageReaderPreview) {
+                // The session is closed, so nothing is queued anymore; hand back the images that
+                // were waiting for conversion before closing their reader.
+                Image image;
+                while ((image = mImageRing.poll()) != null) {
+                    image.close();
+                    mMetrics.recordDiscard();
+                }
                 mImageReaderPreview.close();
                 mImageReaderPreview = null;
             }
@@ -489,7 +923,11 @@ public class Camera2Source {
         } finally {
             mCameraOpenCloseLock.release();
             stopBackgroundThread();
-            Log.d("ASD", "FINISHED CLOSING CAMERA2");
+            if (mFrameRecorder != null) {
+                // Only once the camera background thread, which queues the frames, is gone.
+                mFrameRecorder.stop();
+            }
+            Tracing.endSection();
         }
     }
 
@@ -524,16 +962,31 @@ public class Camera2Source {
             if (cameraStarted) {
                 return this;
             }
-            cameraStarted = true;
-            startBackgroundThread();
+            Tracing.beginSection("Camera2Source.start");
+            try {
+                cameraStarted = true;
+                startBackgroundThread();
 
-            mProcessingThread = new Thread(mFrameProcessor);
-            mFrameProcessor.setActive(true);
-            mProcessingThread.start();
+                mProcessingThread = new Thread(mFrameProcessor);
+                mFrameProcessor.setActive(true);
+                mProcessingThread.start();
 
-            mTextureView = textureView;
-            if (mTextureView.isAvailable()) {
-                openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+                if (mMotionGate != null) {
+                    mMotionGate.reset();
+                }
+                mConvertThread = new Thread(mConverter, "FrameConvert");
+                mImageRing.open();
+                mConvertThread.start();
+                if (mFrameRecorder != null) {
+                    mFrameRecorder.start();
+                }
+
+                mTextureView = textureView;
+                if (mTextureView.isAvailable()) {
+                    openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+                }
+            } finally {
+                Tracing.endSection();
             }
         }
         return this;
@@ -546,6 +999,91 @@ public class Camera2Source {
         return mPreviewSize;
     }
 
+    /**
+     * Returns the factor by which preview frames are reduced before detection; detection
+     * coordinates are expressed in the preview size divided by this factor.
+     */
+    public int getDetectionScale() {
+        return mDetectionScale;
+    }
+
+    /**
+     * Copies into {@code out} the region of the preview that the frame with the given id was
+     * converted from.  Detection coordinates of that frame are mapped to the overlay's coordinate
+     * system with {@link FrameRegion#mapX}, {@link FrameRegion#mapY} and
+     * {@link FrameRegion#mapSize}.  Regions of the most recent frames only are retained; for older
+     * frames the whole preview is assumed.
+     */
+    public void getFrameRegion(int frameId, FrameRegion out) {
+        if (!mFrameProcessor.copyFrameRegion(frameId, out) && mPreviewSize != null) {
+            out.setFullFrame(mPreviewSize.getWidth(), mPreviewSize.getHeight(), mDetectionScale,
+                    getDetectorOrientation(mSensorOrientation));
+        }
+    }
+
+    /**
+     * Reports the bounds of the face detected in the given frame, in detector frame coordinates.
+     * In region of interest mode the following frames are cropped around it.
+     */
+    public void reportFace(int frameId, float x, float y, float width, float height) {
+        if (mRoiController == null && mTemplateTracker == null) {
+            return;
+        }
+        synchronized (mReportRegion) {
+            mReportedFaceFrameId = frameId;
+            mReportedFace[0] = x;
+            mReportedFace[1] = y;
+            mReportedFace[2] = width;
+            mReportedFace[3] = height;
+            if (mRoiController != null) {
+                getFrameRegion(frameId, mReportRegion);
+                mRoiController.onFace(mReportRegion, x, y, width, height);
+            }
+        }
+    }
+
+    /**
+     * Reports that the tracked face was lost; the next frame is scanned in full.
+     */
+    public void reportFaceLost() {
+        if (mRoiController != null) {
+            mRoiController.onFaceLost();
+        }
+    }
+
+    /**
+     * Returns the detection governor, or null if every frame is detected.
+     */
+    public DetectionGovernor getDetectionGovernor() {
+        return mGovernor;
+    }
+
+    /**
+     * Returns the recorder of capture-to-checkpoint latencies.  Frame timestamps (see
+     * {@link Frame.Metadata#getTimestampMillis()}) are sensor capture times in the
+     * {@link SystemClock#elapsedRealtime()} time base, so the overlay can record when it displays
+     * them.
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatencyRecorder;
+    }
+
+    /**
+     * Returns the counters of the acquire, convert and detect stages, in pipeline order.  With a
+     * single detector, publishing the results to the processor happens within the detect stage.
+     */
+    public StageStats[] getStageStats() {
+        return new StageStats[]{mAcquireStats, mConvertStats, mDetectStats};
+    }
+
+    /**
+     * Returns the counters of the frame pipeline, and its per-stage latency histograms once
+     * enabled with {@link PipelineMetrics#setHistogramsEnabled}.
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
     /**
      * Returns the selected camera; one of {@link #CAMERA_FACING_BACK} or
      * {@link #CAMERA_FACING_FRONT}.
@@ -730,6 +1268,7 @@ public class Camera2Source {
             int displayRotation = mDisplayOrientation;
             //noinspection ConstantConditions
             mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            updateSensorTimestampOffset(characteristics);
             boolean swappedDimensions = false;
             switch (displayRotation) {
                 case Surface.ROTATION_0:
@@ -761,12 +1300,12 @@ public class Camera2Source {
                 maxPreviewHeight = displaySize.x;
             }
 
-            if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                maxPreviewWidth = MAX_PREVIEW_WIDTH;
+            if (maxPreviewWidth > mMaxPreviewWidth) {
+                maxPreviewWidth = mMaxPreviewWidth;
             }
 
-            if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+            if (maxPreviewHeight > mMaxPreviewHeight) {
+                maxPreviewHeight = mMaxPreviewHeight;
             }
 
             // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
@@ -903,7 +1442,7 @@ public class Camera2Source {
             // We configure the size of default buffer to be the size of camera preview we want.
             texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
 
-            mImageReaderPreview = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, 1);
+            mImageReaderPreview = ImageReader.newInstance(mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, mConvertDepth + 2);
             mImageReaderPreview.setOnImageAvailableListener(mOnPreviewAvailableListener, mBackgroundHandler);
 
             // This is the output Surface we need to start preview.
@@ -920,6 +1459,7 @@ public class Camera2Source {
 
                         @Override
                         public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            Tracing.instant("Camera2Source.configured");
                             // The camera is already closed
                             if (null == mCameraDevice) {
                                 return;
@@ -944,6 +1484,7 @@ public class Camera2Source {
 
                         @Override
                         public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            Tracing.instant("Camera2Source.configureFailed");
                             Log.d(TAG, "Configuration failed!");
                         }
                     }, null
@@ -959,25 +1500,40 @@ public class Camera2Source {
      * (i.e., without unnecessary context switching or waiting on the next frame).
      * <p/>
      * While detection is running on a frame, new frames may be received from the camera.  As these
-     * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
-     * associated processing are done for the previous frame, detection on the mostly recently
-     * received frame will immediately start on the same thread.
+     * frames come in, they are queued in a bounded ring, which by default holds only the most
+     * recent frame.  As soon as detection and its associated processing are done for the previous
+     * frame, detection on the next queued frame will immediately start on the same thread.
      */
-    private class FrameProcessingRunnable implements Runnable {
+    private class FrameProcessingRunnable implements Runnable, DetectorPool.Callback<PendingFrame> {
         private Detector<?> mDetector;
-        private long mStartTimeMillis = SystemClock.elapsedRealtime();
 
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
+        // Converted frames awaiting detection.  The convert thread offers into it without
+        // blocking; a frame dropped by the ring was never detected and is recycled.
+        private final FrameRing<PendingFrame> mFrames = new FrameRing<>(mDetectDepth, mDropPolicy);
+        // Free frame holders.  Only the convert thread pops, any thread pushes.
+        private final PendingFrame.Stack mFreeFrames = new PendingFrame.Stack(mDetectDepth + 2);
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private byte[] mPendingFrameData;
+        // Written by the convert thread only.
+        private int mNextFrameId = 0;
+
+        // Detect-then-track state; only touched from the processing thread.
+        private int mFramesSinceDetection;
+        private final FrameRegion mTrackRegion = new FrameRegion();
+        private final float[] mTrackRect = new float[4];
+
+        // Regions of the most recently detected frames, indexed by frame id.  Written by the
+        // processing thread just before detection; read by trackers from any thread.
+        private final Object mRegionLock = new Object();
+        private final FrameRegion[] mFrameRegions = new FrameRegion[16];
+        private final int[] mFrameRegionIds = new int[16];
 
         FrameProcessingRunnable(Detector<?> detector) {
             mDetector = detector;
+            mDetectStats = new StageStats("detect", mFrames);
+            for (int i = 0; i < mFrameRegions.length; i++) {
+                mFrameRegions[i] = new FrameRegion();
+                mFrameRegionIds[i] = -1;
+            }
         }
 
         /**
@@ -986,47 +1542,110 @@ public class Camera2Source {
          */
         @SuppressLint("Assert")
         void release() {
-            assert (mProcessingThread.getState() == Thread.State.TERMINATED);
+            assert (mProcessingThread == null
+                    || mProcessingThread.getState() == Thread.State.TERMINATED);
             mDetector.release();
             mDetector = null;
+            if (mDetectorPool != null) {
+                mDetectorPool.release();
+            }
         }
 
         /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+         * Marks the runnable as active/not active.  Wakes the processing thread so that it can
+         * exit once deactivated.  The detector pool, if any, is started here but stopped by
+         * {@link Camera2Source#stop()} once the processing thread has exited.
          */
         void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
+            if (active) {
+                mFrames.open();
+                if (mDetectorPool != null) {
+                    mDetectorPool.start(this);
+                }
+            } else {
+                mFrames.close();
             }
         }
 
         /**
-         * Sets the frame data received from the camera.
+         * Sets the frame data received from the camera, already reduced to the detection size.
+         * Never blocks: if the ring of frames awaiting detection is full, the frame dropped by its
+         * policy goes back to the pool.
          */
-        void setNextFrame(byte[] data) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    mPendingFrameData = null;
-                }
+        void setNextFrame(ByteBuffer data, int width, int height, FrameRegion region, long captureNanos) {
+            PendingFrame frame = mFreeFrames.pop();
+            frame.data = data;
+            frame.width = width;
+            frame.height = height;
+            // Frame IDs are maintained here, which will give downstream code some idea of when
+            // frames were dropped along the way.  The timestamp is the sensor capture time, so
+            // that downstream code can tell how old the frame is.
+            frame.id = ++mNextFrameId;
+            frame.captureNanos = captureNanos;
+            frame.timestampMillis = captureNanos / 1000000;
+            frame.region.set(region);
+
+            PendingFrame dropped = mFrames.offer(frame);
+            if (dropped != null) {
+                recycle(dropped);
+                mMetrics.recordDetectDrop();
+                Tracing.instant("Camera2Source.detectDrop");
+            }
+        }
+
+        /**
+         * Called on a detector worker thread once it no longer needs the frame.
+         */
+        @Override
+        public void onFrameDone(PendingFrame frame, long latencyNanos) {
+            if (latencyNanos >= 0) {
+                mLatencyRecorder.record(LatencyRecorder.DETECTED, frame.captureNanos, SystemClock.elapsedRealtimeNanos());
+                mMetrics.recordStage(PipelineMetrics.STAGE_DETECT, latencyNanos);
+                mMetrics.recordDetected();
+            } else {
+                mMetrics.recordDiscard();
+            }
+            recycle(frame);
+            if (mGovernor != null && latencyNanos >= 0) {
+                // The workers share the load, so each of them only needs to keep up with a
+                // fraction of the detection rate.
+                mGovernor.onDetection(latencyNanos / mDetectorPool.getWorkerCount());
+            }
+        }
+
+        private void recycle(PendingFrame frame) {
+            mFrameBufferPool.release(frame.data);
+            mFreeFrames.push(frame);
+        }
 
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = data;
+        /**
+         * Copies the region of a recent frame into {@code out}.  Returns false if the frame is too
+         * old to be remembered.
+         */
+        boolean copyFrameRegion(int frameId, FrameRegion out) {
+            synchronized (mRegionLock) {
+                int slot = frameId % mFrameRegions.length;
+                if (frameId < 0 || mFrameRegionIds[slot] != frameId) {
+                    return false;
+                }
+                out.set(mFrameRegions[slot]);
+                return true;
+            }
+        }
 
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+        private void storeFrameRegion(int frameId, FrameRegion region) {
+            synchronized (mRegionLock) {
+                int slot = frameId % mFrameRegions.length;
+                mFrameRegions[slot].set(region);
+                mFrameRegionIds[slot] = frameId;
             }
         }
 
         /**
          * As long as the processing thread is active, this executes detection on frames
          * continuously.  The next pending frame is either immediately available or hasn't been
-         * received yet.  Once it is available, we transfer the frame info to local variables and
-         * run detection on that frame.  It immediately loops back for the next frame without
-         * pausing.
+         * received yet, in which case the thread parks until the camera posts one.  It immediately
+         * loops back for the next frame without pausing.
          * <p/>
          * If detection takes longer than the time in between new frames from the camera, this will
          * mean that this loop will run without ever waiting on a frame, avoiding any context
@@ -1037,51 +1656,188 @@ public class Camera2Source {
          */
         @Override
         public void run() {
-            Frame outputFrame;
-
-            while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
+            PendingFrame frame;
+            long waitNanos = System.nanoTime();
+            while ((frame = mFrames.take()) != null) {
+                long startNanos = System.nanoTime();
+                mDetectStats.recordWait(startNanos - waitNanos);
+                // Nothing below holds a lock, so the convert stage can queue new frames while we
+                // are building this one and running detection on it.
+                storeFrameRegion(frame.id, frame.region);
+                Tracing.beginSection("Camera2Source.detect");
+                if (mDetectorPool != null) {
+                    // Waits for an idle worker, which recycles the frame once detected.
+                    if (!mDetectorPool.dispatch(buildFrame(frame), frame)) {
+                        // Stopped while waiting for a worker.
+                        recycle(frame);
+                        mMetrics.recordDiscard();
+                    }
+                } else if (mTemplateTracker != null && trackFrame(frame)) {
+                    // The face was followed without running the detector.
+                    mLatencyRecorder.record(LatencyRecorder.DETECTED, frame.captureNanos, SystemClock.elapsedRealtimeNanos());
+                    recycle(frame);
+                } else {
+                    boolean detected = false;
+                    try {
+                        mDetector.receiveFrame(buildFrame(frame));
+                        detected = true;
+                        mLatencyRecorder.record(LatencyRecorder.DETECTED, frame.captureNanos, SystemClock.elapsedRealtimeNanos());
+                        mMetrics.recordDetected();
+                        if (mGovernor != null) {
+                            mGovernor.onDetection(System.nanoTime() - startNanos);
+                        }
+                        if (mTemplateTracker != null) {
+                            seedTracker(frame);
+                        }
+                    } catch (Throwable t) {
+                        Log.e(TAG, "Exception thrown from receiver.", t);
+                        if (!detected) {
+                            mMetrics.recordDiscard();
                         }
+                    } finally {
+                        recycle(frame);
                     }
+                }
+                Tracing.endSection();
+                waitNanos = System.nanoTime();
+                mDetectStats.recordBusy(waitNanos - startNanos);
+                if (mDetectorPool == null) {
+                    // With a pool, this is only the dispatch; workers report their own times.
+                    mMetrics.recordStage(PipelineMetrics.STAGE_DETECT, waitNanos - startNanos);
+                }
+            }
 
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
+            // Exit the loop once this camera source is stopped or released, recycling the frames
+            // that may have been queued in the meantime.
+            PendingFrame leftover;
+            while ((leftover = mFrames.poll()) != null) {
+                recycle(leftover);
+                mMetrics.recordDiscard();
+            }
+        }
 
-                    outputFrame = new Frame.Builder()
-                            .setImageData(ByteBuffer.wrap(quarterNV21(mPendingFrameData, mPreviewSize.getWidth(), mPreviewSize.getHeight())), mPreviewSize.getWidth() / 4, mPreviewSize.getHeight() / 4, ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(getDetectorOrientation(mSensorOrientation))
-                            .build();
+        /**
+         * Follows the face on a frame with the template tracker, if the frame is not due for
+         * detection.  Returns false if the frame must go through the detector.
+         */
+        private boolean trackFrame(PendingFrame frame) {
+            if (mFramesSinceDetection + 1 >= mTrackDetectionInterval
+                    || !mTemplateTracker.hasTemplate() || !frame.region.sameWindow(mTrackRegion)) {
+                return false;
+            }
+            if (!mTemplateTracker.track(frame.data, frame.width, frame.height)) {
+                // Lost or drifted; re-synchronize with the detector on this very frame.
+                mTemplateTracker.clear();
+                return false;
+            }
+            mFramesSinceDetection++;
+            FrameRegion region = frame.region;
+            float x = region.left + mTemplateTracker.getX() * region.factor;
+            float y = region.top + mTemplateTracker.getY() * region.factor;
+            mTrackRect[0] = x;
+            mTrackRect[1] = y;
+            mTrackRect[2] = x + mTemplateTracker.getWidth() * region.factor;
+            mTrackRect[3] = y + mTemplateTracker.getHeight() * region.factor;
+            region.previewToOverlay(mTrackRect, mTrackRect);
+            mMetrics.recordTracked();
+            Tracing.instant("Camera2Source.track");
+            mFaceTrackCallback.onFaceTracked(mTrackRect[0], mTrackRect[1], mTrackRect[2], mTrackRect[3],
+                    frame.timestampMillis);
+            return true;
+        }
 
-                    // We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    mPendingFrameData = null;
+        /**
+         * Takes a new template from a frame that just went through the detector, around the face
+         * reported for it, or forgets the template if no face was reported.
+         */
+        private void seedTracker(PendingFrame frame) {
+            mFramesSinceDetection = 0;
+            FrameRegion region = frame.region;
+            synchronized (mReportRegion) {
+                if (mReportedFaceFrameId != frame.id) {
+                    mTemplateTracker.clear();
+                    return;
                 }
+                region.toPreviewRect(mReportedFace[0], mReportedFace[1], mReportedFace[2],
+                        mReportedFace[3], mTrackRect);
+            }
+            // Preview pixels to pixels of the detection frame.
+            float x = (mTrackRect[0] - region.left) / region.factor;
+            float y = (mTrackRect[1] - region.top) / region.factor;
+            float w = (mTrackRect[2] - mTrackRect[0]) / region.factor;
+            float h = (mTrackRect[3] - mTrackRect[1]) / region.factor;
+            if (mTemplateTracker.seed(frame.data, frame.width, frame.height, x, y, w, h)) {
+                mTrackRegion.set(region);
+            }
+        }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
+        private Frame buildFrame(PendingFrame frame) {
+            return new Frame.Builder()
+                    .setImageData(frame.data, frame.width, frame.height, ImageFormat.NV21)
+                    .setId(frame.id)
+                    .setTimestampMillis(frame.timestampMillis)
+                    .setRotation(getDetectorOrientation(mSensorOrientation))
+                    .build();
+        }
+    }
 
+    /**
+     * The convert stage of the pipeline: takes the preview images queued by the image reader,
+     * reduces each of them to a detection frame and hands it to the detect stage.  Running on its
+     * own thread, conversion of one image overlaps the acquisition of the next one and the
+     * detection of the previous one.
+     */
+    private class ConvertRunnable implements Runnable {
+        @Override
+        public void run() {
+            Image image;
+            long waitNanos = System.nanoTime();
+            while ((image = mImageRing.take()) != null) {
+                long startNanos = System.nanoTime();
+                mConvertStats.recordWait(startNanos - waitNanos);
+                Tracing.beginSection("Camera2Source.convert");
                 try {
-                    mDetector.receiveFrame(outputFrame);
-                } catch (Throwable t) {
-                    Log.e(TAG, "Exception thrown from receiver.", t);
+                    convert(image);
+                } catch (IllegalStateException e) {
+                    // The image reader was closed under us while stopping.
+                    Log.d(TAG, "Preview image no longer available.", e);
+                    mMetrics.recordDiscard();
+                } finally {
+                    image.close();
+                    Tracing.endSection();
                 }
+                waitNanos = System.nanoTime();
+                mConvertStats.recordBusy(waitNanos - startNanos);
+                mMetrics.recordStage(PipelineMetrics.STAGE_CONVERT, waitNanos - startNanos);
+            }
+        }
+
+        private void convert(Image image) {
+            int rotation = getDetectorOrientation(mSensorOrientation);
+            int previewWidth = image.getWidth();
+            int previewHeight = image.getHeight();
+            if (mRoiController != null) {
+                mRoiController.nextRegion(previewWidth, previewHeight, mDetectionScale, rotation, mNextRegion);
+            } else {
+                mNextRegion.setFullFrame(previewWidth, previewHeight, mDetectionScale, rotation);
+            }
+            if (mGovernor != null && mNextRegion.isFullFrame()) {
+                mNextRegion.set(0, 0, previewWidth, previewHeight, mGovernor.getScale(),
+                        previewWidth, previewHeight, mDetectionScale, rotation);
+            }
+            int width = YuvConverter.scaledDimension(mNextRegion.getWidth(), mNextRegion.getFactor());
+            int height = YuvConverter.scaledDimension(mNextRegion.getHeight(), mNextRegion.getFactor());
+            long captureNanos = image.getTimestamp() + mSensorTimestampOffsetNanos;
+            ByteBuffer data = convertToDetectionFrame(image, mNextRegion, width, height);
+            mLatencyRecorder.record(LatencyRecorder.CONVERTED, captureNanos, SystemClock.elapsedRealtimeNanos());
+            if (mMotionGate != null && !mMotionGate.shouldDetect(data, width, height, mNextRegion)) {
+                // Nothing moved; the trackers keep the result of the last detected frame.
+                mFrameBufferPool.release(data);
+                mMetrics.recordUnchanged();
+                Tracing.instant("Camera2Source.unchanged");
+                return;
             }
+            mFrameProcessor.setNextFrame(data, width, height, mNextRegion, captureNanos);
         }
     }
 
@@ -1116,41 +1872,69 @@ public class Camera2Source {
         }
     }
 
-    private byte[] convertYUV420888ToNV21(Image imgYUV420) {
-        // Converting YUV_420_888 data to NV21.
-        byte[] data;
-        ByteBuffer buffer0 = imgYUV420.getPlanes()[0].getBuffer();
-        ByteBuffer buffer2 = imgYUV420.getPlanes()[2].getBuffer();
-        int buffer0_size = buffer0.remaining();
-        int buffer2_size = buffer2.remaining();
-        data = new byte[buffer0_size + buffer2_size];
-        buffer0.get(data, 0, buffer0_size);
-        buffer2.get(data, buffer0_size, buffer2_size);
+    /**
+     * Reads the planes of the preview image once and produces the NV21 frame handed to the
+     * detector: the given region, reduced by its factor.  In luma-only mode the buffer holds
+     * just the Y plane; {@link Frame.Builder} accepts it as NV21 since only the first
+     * width * height bytes are used for detection.
+     */
+    private ByteBuffer convertToDetectionFrame(Image imgYUV420, FrameRegion region, int width, int height) {
+        Image.Plane[] planes = imgYUV420.getPlanes();
+        int fullSize = YuvConverter.nv21Size(
+                YuvConverter.scaledDimension(imgYUV420.getWidth(), mDetectionScale),
+                YuvConverter.scaledDimension(imgYUV420.getHeight(), mDetectionScale));
+        int factor = region.getFactor();
+        int size;
+        ByteBuffer data;
+        if (mLumaOnly) {
+            mPreviewPlanes.setLuma(imgYUV420.getWidth(), imgYUV420.getHeight(),
+                    planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride());
+            cropToRegion(region);
+            size = YuvConverter.lumaSize(width, height);
+            data = mFrameBufferPool.acquire(size);
+            if (mParallelConverter != null) {
+                mParallelConverter.convertLumaScaled(mPreviewPlanes, factor, mDownscaleFilter, data);
+            } else {
+                YuvConverter.convertLumaScaled(mPreviewPlanes, factor, mDownscaleFilter, data);
+            }
+        } else {
+            mPreviewPlanes.set(imgYUV420.getWidth(), imgYUV420.getHeight(),
+                    planes[0].getBuffer(), planes[0].getRowStride(), planes[0].getPixelStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride());
+            cropToRegion(region);
+            size = YuvConverter.nv21Size(width, height);
+            data = mFrameBufferPool.acquire(size);
+            if (mParallelConverter != null) {
+                mParallelConverter.convertToNV21Scaled(mPreviewPlanes, factor, mDownscaleFilter, data);
+            } else {
+                YuvConverter.convertToNV21Scaled(mPreviewPlanes, factor, mDownscaleFilter, data);
+            }
+        }
+        mPreviewPlanes.clear();
+        mMetrics.recordConversion(size, fullSize - size);
+        data.position(0);
+        data.limit(size);
         return data;
     }
 
-    private byte[] quarterNV21(byte[] data, int iWidth, int iHeight) {
-        // Reduce to quarter size the NV21 frame
-        byte[] yuv = new byte[iWidth / 4 * iHeight / 4 * 3 / 2];
-        // halve yuma
-        int i = 0;
-        for (int y = 0; y < iHeight; y += 4) {
-            for (int x = 0; x < iWidth; x += 4) {
-                yuv[i] = data[y * iWidth + x];
-                i++;
-            }
-        }
-        // halve U and V color components
-        /*
-        for (int y = 0; y < iHeight / 2; y+=4) {
-            for (int x = 0; x < iWidth; x += 8) {
-                yuv[i] = data[(iWidth * iHeight) + (y * iWidth) + x];
-                i++;
-                yuv[i] = data[(iWidth * iHeight) + (y * iWidth) + (x + 1)];
-                i++;
-            }
-        }*/
-        return yuv;
+    /**
+     * Sensor timestamps are either in the elapsedRealtimeNanos() time base or, when their source
+     * is unknown (and before API 23), usually in the System.nanoTime() one; in the latter case
+     * the offset between the two clocks is added to every timestamp.
+     */
+    private void updateSensorTimestampOffset(CameraCharacteristics characteristics) {
+        boolean realtime = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer source = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            realtime = source != null && source == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+        mSensorTimestampOffsetNanos = realtime ? 0 : SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+    }
+
+    private void cropToRegion(FrameRegion region) {
+        if (!region.isFullFrame()) {
+            mPreviewPlanes.crop(region.getLeft(), region.getTop(), region.getWidth(), region.getHeight());
+        }
     }
 
     private class PictureDoneCallback implements ImageReader.OnImageAvailableListener {
@@ -79,6 +79,7 @@ public class CameraSourcePreview extends ViewGroup {
     }
 
     public void stop() {
+        Tracing.instant("CameraSourcePreview.stop");
         mStartRequested = false;
         if (mCamera2Source != null) {
             mCamera2Source.stop();
@@ -87,6 +88,7 @@ public class CameraSourcePreview extends ViewGroup {
 
     private void startIfReady() throws IOException {
         if (mStartRequested && mSurfaceAvailable) {
+            Tracing.beginSection("CameraSourcePreview.startIfReady");
             try {
                 mCamera2Source.start(mAutoFitTextureView, mScreenRotation);
                 if (mOverlay != null) {
@@ -94,9 +96,14 @@ public class CameraSourcePreview extends ViewGroup {
                     if (size != null) {
                         int min = Math.min(size.getWidth(), size.getHeight());
                         int max = Math.max(size.getWidth(), size.getHeight());
-                        // FOR GRAPHIC OVERLAY, THE PREVIEW SIZE WAS REDUCED TO QUARTER
-                        // IN ORDER TO PREVENT CPU OVERLOAD
-                        mOverlay.setCameraInfo(min / 4, max / 4, mCamera2Source.getCameraFacing());
+                        // FOR GRAPHIC OVERLAY, THE PREVIEW SIZE WAS REDUCED BY THE DETECTION SCALE
+                        // IN ORDER TO PREVENT CPU OVERLOAD; use the exact size of the frames, which
+                        // is rounded down to even
+                        int scale = mCamera2Source.getDetectionScale();
+                        mOverlay.setCameraInfo(YuvConverter.scaledDimension(min, scale),
+                                YuvConverter.scaledDimension(max, scale),
+                                mCamera2Source.getCameraFacing());
+                        mOverlay.setPipelineMetrics(mCamera2Source.getMetrics());
                         mOverlay.clear();
                     } else {
                         stop();
@@ -105,6 +112,8 @@ public class CameraSourcePreview extends ViewGroup {
                 mStartRequested = false;
             } catch (SecurityException e) {
                 Log.d(TAG, "SECURITY EXCEPTION: " + e);
+            } finally {
+                Tracing.endSection();
             }
         }
     }
@@ -112,6 +121,7 @@ public class CameraSourcePreview extends ViewGroup {
     private final SurfaceHolder.Callback mSurfaceViewListener = new SurfaceHolder.Callback() {
         @Override
         public void surfaceCreated(SurfaceHolder surface) {
+            Tracing.instant("CameraSourcePreview.surfaceCreated");
             mSurfaceAvailable = true;
             mOverlay.bringToFront();
             try {
@@ -123,6 +133,7 @@ public class CameraSourcePreview extends ViewGroup {
 
         @Override
         public void surfaceDestroyed(SurfaceHolder surface) {
+            Tracing.instant("CameraSourcePreview.surfaceDestroyed");
             mSurfaceAvailable = false;
         }
 
@@ -134,6 +145,7 @@ public class CameraSourcePreview extends ViewGroup {
     private final TextureView.SurfaceTextureListener mSurfaceTextureListener = new TextureView.SurfaceTextureListener() {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
+            Tracing.instant("CameraSourcePreview.surfaceCreated");
             mSurfaceAvailable = true;
             mOverlay.bringToFront();
             try {
@@ -149,6 +161,7 @@ public class CameraSourcePreview extends ViewGroup {
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
+            Tracing.instant("CameraSourcePreview.surfaceDestroyed");
             mSurfaceAvailable = false;
             return true;
         }
@@ -0,0 +1,378 @@
+package facetracker.donlingliang.facetrack;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.face.Face;
+
+/**
+ * Runs detection on consecutive frames in parallel, on a pool of detector instances, and hands
+ * the results to a single {@link Detector.Processor} in the order the frames were dispatched.
+ * <p/>
+ * A single detector is limited to one frame per detection latency.  With N workers up to N frames
+ * are in flight at once, so the detection rate scales with the number of cores, while the
+ * processor (typically a {@link com.google.android.gms.vision.MultiProcessor} feeding trackers)
+ * still sees frame ids in increasing order, one frame at a time.
+ * <p/>
+ * Frames are dispatched from a single thread through {@link #dispatch}, which waits for an idle
+ * worker.  Each worker owns its detector and thread; it calls {@link Detector#detect} and never
+ * {@link Detector#receiveFrame}, so the detectors' own processors are not used.
+ * <p/>
+ * Each detector instance assigns its own tracking ids, which are only stable across the frames
+ * of the same worker.  The pool therefore replaces them before delivery, matching the items of
+ * each frame to those of the previously delivered one by overlap (see
+ * {@link OverlapIdAssigner}).  Trackers keyed by id, such as those of a {@link com.google.android.gms.vision.MultiProcessor}, thus follow an
+ * item whichever worker detected it.  The pool needs the {@link ItemBounds} of the items for this,
+ * except with a single worker, whose detector's own ids are kept.
+ *
+ * @param <T> the type of the detected items
+ */
+public class DetectorPool<T> {
+    private static final String TAG = "DetectorPool";
+
+    /**
+     * Creates the additional detector instances of a pool.  Each instance must be configured like
+     * the primary detector.
+     */
+    public interface DetectorFactory<T> {
+        Detector<T> create();
+    }
+
+    /**
+     * Gives the pool the position of detected items, to follow them across workers.
+     */
+    public interface ItemBounds<T> {
+        /**
+         * Writes the left, top, width and height of {@code item}, in frame pixels, to
+         * {@code out[0]} to {@code out[3]}.
+         */
+        void get(T item, float[] out);
+    }
+
+    /**
+     * The bounds of a {@link Face}: its position and size.
+     */
+    public static final ItemBounds<Face> FACE_BOUNDS = new ItemBounds<Face>() {
+        @Override
+        public void get(Face face, float[] out) {
+            out[0] = face.getPosition().x;
+            out[1] = face.getPosition().y;
+            out[2] = face.getWidth();
+            out[3] = face.getHeight();
+        }
+    };
+
+    /**
+     * Notified on a worker thread once the detector is done with a frame, before its results are
+     * delivered.
+     */
+    interface Callback<K> {
+        /**
+         * @param token         the token the frame was dispatched with
+         * @param latencyNanos  time spent in {@link Detector#detect}, or -1 if the frame was not
+         *                      detected: the pool was stopped first, or the detector threw
+         */
+        void onFrameDone(K token, long latencyNanos);
+    }
+
+    private final Detector.Processor<T> mProcessor;
+    private final ItemBounds<T> mBounds;
+    private final Worker[] mWorkers;
+
+    // Guards the idle workers, the reorder window and mActive.
+    private final Object mLock = new Object();
+    private final Worker[] mIdle;
+    private int mIdleCount;
+    private boolean mActive;
+
+    // Results of dispatched frames, indexed by dispatch sequence number.  A frame is dispatched
+    // only once the result mWindow.length frames before it has been delivered.
+    private final Result<T>[] mWindow;
+    private long mNextSequence;
+    private long mNextDelivery;
+
+    // Serializes delivery to the processor; never held together with mLock.
+    private final Object mDeliveryLock = new Object();
+
+    // Guarded by mDeliveryLock.
+    private final OverlapIdAssigner mIds = new OverlapIdAssigner();
+    private final float[] mItemBounds = new float[4];
+
+    private Callback<Object> mCallback;
+
+    /**
+     * @param primary   the detector used by the first worker; it is not released by the pool
+     * @param factory   creates the detectors of the other workers
+     * @param workers   the number of workers, at least one
+     * @param bounds    the bounds of the items, used to give them ids that hold across workers;
+     *                  only optional with a single worker
+     * @param processor receives the results, in dispatch order
+     */
+    // Arrays of a generic type can only be created raw.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DetectorPool(Detector<T> primary, DetectorFactory<T> factory, int workers,
+                        ItemBounds<T> bounds, Detector.Processor<T> processor) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid worker count: " + workers);
+        }
+        if (bounds == null && workers > 1) {
+            throw new IllegalArgumentException("Item bounds are required with several workers.");
+        }
+        if (processor == null) {
+            throw new IllegalArgumentException("No processor supplied.");
+        }
+        mProcessor = processor;
+        mBounds = workers > 1 ? bounds : null;
+        mWorkers = new DetectorPool.Worker[workers];
+        mIdle = new DetectorPool.Worker[workers];
+        for (int i = 0; i < workers; i++) {
+            mWorkers[i] = new Worker(i == 0 ? primary : factory.create(), i != 0);
+        }
+        mWindow = new Result[2 * workers];
+        for (int i = 0; i < mWindow.length; i++) {
+            mWindow[i] = new Result<>();
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    @SuppressWarnings("unchecked")
+    <K> void start(Callback<K> callback) {
+        synchronized (mLock) {
+            mCallback = (Callback<Object>) callback;
+            mActive = true;
+            mIdleCount = 0;
+            for (Worker worker : mWorkers) {
+                mIdle[mIdleCount++] = worker;
+            }
+            for (Result<T> result : mWindow) {
+                result.clear();
+            }
+            mNextSequence = 0;
+            mNextDelivery = 0;
+        }
+        synchronized (mDeliveryLock) {
+            mIds.reset();
+        }
+        for (int i = 0; i < mWorkers.length; i++) {
+            Worker worker = mWorkers[i];
+            worker.mMailbox.open();
+            worker.mThread = new Thread(worker, "DetectorWorker-" + i);
+            worker.mThread.start();
+        }
+    }
+
+    /**
+     * Stops the workers after the frames in flight, and wakes a dispatcher waiting for one.
+     */
+    void stop() {
+        synchronized (mLock) {
+            mActive = false;
+            mLock.notifyAll();
+        }
+        // Frames are posted under mLock after checking mActive, so none is posted from now on.
+        for (Worker worker : mWorkers) {
+            worker.mMailbox.close();
+            if (worker.mThread != null) {
+                try {
+                    worker.mThread.join();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "Interrupted while stopping detector workers.");
+                }
+                worker.mThread = null;
+            }
+        }
+        for (Worker worker : mWorkers) {
+            // A frame handed over just before the mailbox was closed is returned undetected, so
+            // that no stale job is left for the next session.
+            Job leftover;
+            synchronized (mLock) {
+                leftover = worker.mMailbox.poll();
+            }
+            if (leftover != null) {
+                Object token = leftover.mToken;
+                leftover.set(null, null, -1);
+                mCallback.onFrameDone(token, -1);
+            }
+        }
+    }
+
+    /**
+     * Releases the detectors created by the factory and the processor.  Only safe once stopped.
+     */
+    void release() {
+        for (Worker worker : mWorkers) {
+            if (worker.mOwnsDetector) {
+                worker.mDetector.release();
+            }
+        }
+        mProcessor.release();
+    }
+
+    /**
+     * Hands a frame to the next idle worker, waiting for one if all of them are busy.  Returns
+     * false, without dispatching, if the pool was stopped or the thread interrupted in the
+     * meantime; the caller keeps ownership of the frame data in that case.
+     */
+    boolean dispatch(Frame frame, Object token) {
+        synchronized (mLock) {
+            while (mActive && (mIdleCount == 0 || mNextSequence - mNextDelivery >= mWindow.length)) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            if (!mActive) {
+                return false;
+            }
+            // Posted while holding the lock, so that stop() cannot slip in between the check of
+            // mActive and the post.
+            Worker worker = mIdle[--mIdleCount];
+            worker.mJob.set(frame, token, mNextSequence++);
+            worker.mMailbox.post(worker.mJob);
+        }
+        return true;
+    }
+
+    private void onDetected(Worker worker, long sequence, SparseArray<T> items, Frame.Metadata metadata) {
+        synchronized (mLock) {
+            mWindow[(int) (sequence % mWindow.length)].set(sequence, items, metadata);
+        }
+        deliver();
+        synchronized (mLock) {
+            mIdle[mIdleCount++] = worker;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Delivers the consecutive results available from the head of the window.  Whichever worker
+     * completes the head frame delivers it, together with the later frames that were already
+     * done.
+     */
+    private void deliver() {
+        synchronized (mDeliveryLock) {
+            while (true) {
+                SparseArray<T> items;
+                Frame.Metadata metadata;
+                synchronized (mLock) {
+                    Result<T> head = mWindow[(int) (mNextDelivery % mWindow.length)];
+                    if (head.mSequence != mNextDelivery) {
+                        return;
+                    }
+                    items = head.mItems;
+                    metadata = head.mMetadata;
+                    head.clear();
+                    mNextDelivery++;
+                    mLock.notifyAll();
+                }
+                if (items == null) {
+                    // Detection failed on this frame; skip it without breaking the order.
+                    continue;
+                }
+                if (mBounds != null) {
+                    items = assignIds(items);
+                }
+                try {
+                    mProcessor.receiveDetections(new Detector.Detections<>(items, metadata, true));
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from processor.", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the items keyed by pool-wide ids instead of the ids of the worker's detector.
+     */
+    private SparseArray<T> assignIds(SparseArray<T> items) {
+        int count = items.size();
+        SparseArray<T> assigned = new SparseArray<>(count);
+        float[] box = mItemBounds;
+        mIds.beginFrame();
+        for (int i = 0; i < count; i++) {
+            T item = items.valueAt(i);
+            mBounds.get(item, box);
+            assigned.put(mIds.assign(box[0], box[1], box[2], box[3]), item);
+        }
+        mIds.endFrame();
+        return assigned;
+    }
+
+    private static final class Job {
+        Frame mFrame;
+        Object mToken;
+        long mSequence;
+
+        void set(Frame frame, Object token, long sequence) {
+            mFrame = frame;
+            mToken = token;
+            mSequence = sequence;
+        }
+    }
+
+    private static final class Result<T> {
+        long mSequence = -1;
+        SparseArray<T> mItems;
+        Frame.Metadata mMetadata;
+
+        void set(long sequence, SparseArray<T> items, Frame.Metadata metadata) {
+            mSequence = sequence;
+            mItems = items;
+            mMetadata = metadata;
+        }
+
+        void clear() {
+            mSequence = -1;
+            mItems = null;
+            mMetadata = null;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final Detector<T> mDetector;
+        final boolean mOwnsDetector;
+        final FrameMailbox<Job> mMailbox = new FrameMailbox<>();
+        final Job mJob = new Job();
+        Thread mThread;
+
+        Worker(Detector<T> detector, boolean ownsDetector) {
+            mDetector = detector;
+            mOwnsDetector = ownsDetector;
+        }
+
+        @Override
+        public void run() {
+            Job job;
+            while ((job = mMailbox.take()) != null) {
+                Frame frame = job.mFrame;
+                Object token = job.mToken;
+                long sequence = job.mSequence;
+                SparseArray<T> items = null;
+                long latencyNanos = -1;
+                long startNanos = System.nanoTime();
+                Tracing.beginSection("DetectorPool.detect");
+                try {
+                    items = mDetector.detect(frame);
+                    latencyNanos = System.nanoTime() - startNanos;
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from detector.", t);
+                } finally {
+                    Tracing.endSection();
+                }
+                Frame.Metadata metadata = frame.getMetadata();
+                job.set(null, null, -1);
+                mCallback.onFrameDone(token, latencyNanos);
+                onDetected(this, sequence, items, metadata);
+            }
+        }
+    }
+}
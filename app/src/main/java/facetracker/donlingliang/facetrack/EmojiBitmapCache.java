@@ -0,0 +1,278 @@
+package facetracker.donlingliang.facetrack;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.SparseArray;
+
+/**
+ * Decoded and pre-scaled emoji bitmaps for {@link FaceGraphic}.
+ * <p/>
+ * Each drawable is decoded once and kept for the lifetime of the cache; {@link #getSource} returns
+ * it as is, to be scaled while drawing.  For sizes well below that of the drawable, where scaling
+ * while drawing would alias, {@link #get} returns pre-scaled variants, made on demand for
+ * quantized sizes: a requested dimension is rounded up to the next of
+ * {@link #SIZE_STEPS} steps per power of two (at most 12.5% larger), so a face moving back and
+ * forth reuses the same few variants, which are drawn into the exact face rectangle.  Variants
+ * are kept in a least recently used list of at most {@link #MAX_VARIANTS} entries and
+ * {@code maxBytes} bytes.  Looking up a cached variant does not allocate.
+ * <p/>
+ * {@link FaceGraphic} only asks for variants when shrinking a drawable to less than half its size,
+ * i.e. for faces far from the camera.  Filtered drawing then still reads only the four source
+ * pixels around each destination pixel and skips the rest, so the emoji shimmers as the face
+ * moves; a variant made with {@link Bitmap#createScaledBitmap} once per size step does not.
+ * Larger faces never reach the variants, which then cost nothing.
+ * <p/>
+ * Not thread safe; meant to be used from the UI thread, within draw calls.
+ */
+public class EmojiBitmapCache {
+    static final int SIZE_STEPS = 8;
+    static final int MAX_VARIANTS = 16;
+
+    private final Resources mResources;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final SparseArray<Bitmap> mDecoded = new SparseArray<>();
+
+    private final Variants<Bitmap> mVariants;
+
+    private long mDecodedBytes;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxBytes the size the scaled variants may take in memory, decoded drawables excluded
+     */
+    public EmojiBitmapCache(Resources resources, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        mResources = resources;
+        mVariants = new Variants<>(MAX_VARIANTS, maxBytes);
+        // Emoji are drawn at face size, whatever the screen density.
+        mOptions.inScaled = false;
+    }
+
+    /**
+     * Returns the drawable scaled to at least the given size, within one quantization step.
+     *
+     * @return the bitmap, or null if the drawable cannot be decoded or the size is empty
+     */
+    public Bitmap get(int resId, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        int bucketWidth = quantize(width);
+        int bucketHeight = quantize(height);
+        Bitmap variant = mVariants.get(resId, bucketWidth, bucketHeight);
+        if (variant != null) {
+            mHits++;
+            return variant;
+        }
+        mMisses++;
+        Bitmap source = getDecoded(resId);
+        if (source == null) {
+            return null;
+        }
+        variant = Bitmap.createScaledBitmap(source, bucketWidth, bucketHeight, true);
+        // One that would not fit even alone is not kept; the caller draws it once and lets it go.
+        mVariants.put(resId, bucketWidth, bucketHeight, variant, variant.getByteCount());
+        return variant;
+    }
+
+    /**
+     * Returns the decoded drawable, at its own size.
+     *
+     * @return the bitmap, or null if the drawable cannot be decoded
+     */
+    public Bitmap getSource(int resId) {
+        Bitmap decoded = mDecoded.get(resId);
+        if (decoded != null) {
+            mHits++;
+            return decoded;
+        }
+        mMisses++;
+        return getDecoded(resId);
+    }
+
+    private Bitmap getDecoded(int resId) {
+        Bitmap decoded = mDecoded.get(resId);
+        if (decoded == null) {
+            decoded = BitmapFactory.decodeResource(mResources, resId, mOptions);
+            if (decoded != null) {
+                mDecoded.put(resId, decoded);
+                mDecodedBytes += decoded.getByteCount();
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Rounds a dimension up to the next quantization step: {@link #SIZE_STEPS} equal steps per
+     * power of two.
+     */
+    static int quantize(int size) {
+        if (size <= SIZE_STEPS) {
+            return size;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(size) - 3;
+        int step = 1 << shift;
+        return (size + step - 1) & -step;
+    }
+
+    /**
+     * Drops every bitmap, e.g. when the system is low on memory.  Bitmaps still referenced by the
+     * caller stay valid.
+     */
+    public void clear() {
+        mVariants.clear();
+        mDecoded.clear();
+        mDecodedBytes = 0;
+    }
+
+    public long getHitCount() {
+        return mHits;
+    }
+
+    public long getMissCount() {
+        return mMisses;
+    }
+
+    public long getEvictionCount() {
+        return mVariants.getEvictionCount();
+    }
+
+    /**
+     * Returns the memory taken by the cached scaled variants.
+     */
+    public long getVariantBytes() {
+        return mVariants.getBytes();
+    }
+
+    /**
+     * Returns the memory taken by the decoded drawables.
+     */
+    public long getDecodedBytes() {
+        return mDecodedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "EmojiBitmapCache{hits=" + mHits
+                + ", misses=" + mMisses
+                + ", evictions=" + getEvictionCount()
+                + ", variantBytes=" + getVariantBytes()
+                + ", decodedBytes=" + mDecodedBytes + "}";
+    }
+
+    /**
+     * The least recently used list of scaled variants, keyed by drawable and quantized size and
+     * bounded both in entries and in bytes.  Holds values of any type, so that eviction can be
+     * tested off device.
+     */
+    static class Variants<V> {
+        private final int[] mResIds;
+        private final int[] mWidths;
+        private final int[] mHeights;
+        private final Object[] mValues;
+        private final long[] mSizes;
+        // Orders the entries for eviction.
+        private final long[] mLastUse;
+        private final long mMaxBytes;
+        private long mUseCount;
+        private long mBytes;
+        private long mEvictions;
+
+        Variants(int maxEntries, long maxBytes) {
+            mResIds = new int[maxEntries];
+            mWidths = new int[maxEntries];
+            mHeights = new int[maxEntries];
+            mValues = new Object[maxEntries];
+            mSizes = new long[maxEntries];
+            mLastUse = new long[maxEntries];
+            mMaxBytes = maxBytes;
+        }
+
+        /**
+         * Returns the variant of the given size and marks it as the most recently used, or null.
+         */
+        @SuppressWarnings("unchecked")
+        V get(int resId, int width, int height) {
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] != null && mResIds[i] == resId
+                        && mWidths[i] == width && mHeights[i] == height) {
+                    mLastUse[i] = ++mUseCount;
+                    return (V) mValues[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds a variant taking {@code bytes} of memory, evicting the least recently used ones
+         * until it fits.
+         *
+         * @return false if the variant is larger than the whole budget, and was not added
+         */
+        boolean put(int resId, int width, int height, V value, long bytes) {
+            if (bytes > mMaxBytes) {
+                return false;
+            }
+            while (mBytes + bytes > mMaxBytes) {
+                evict(leastRecentlyUsed());
+            }
+            int slot = emptySlot();
+            if (slot < 0) {
+                slot = leastRecentlyUsed();
+                evict(slot);
+            }
+            mResIds[slot] = resId;
+            mWidths[slot] = width;
+            mHeights[slot] = height;
+            mValues[slot] = value;
+            mSizes[slot] = bytes;
+            mLastUse[slot] = ++mUseCount;
+            mBytes += bytes;
+            return true;
+        }
+
+        private int emptySlot() {
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int leastRecentlyUsed() {
+            int oldest = -1;
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i] != null && (oldest < 0 || mLastUse[i] < mLastUse[oldest])) {
+                    oldest = i;
+                }
+            }
+            return oldest;
+        }
+
+        private void evict(int slot) {
+            mBytes -= mSizes[slot];
+            mValues[slot] = null;
+            mEvictions++;
+        }
+
+        void clear() {
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = null;
+            }
+            mBytes = 0;
+        }
+
+        long getBytes() {
+            return mBytes;
+        }
+
+        long getEvictionCount() {
+            return mEvictions;
+        }
+    }
+}
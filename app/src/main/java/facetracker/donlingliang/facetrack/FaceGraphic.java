@@ -5,18 +5,21 @@ package facetracker.donlingliang.facetrack;
  */
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
+import android.graphics.RectF;
+import android.os.SystemClock;
 
 import com.google.android.gms.vision.face.Face;
 import com.google.android.gms.vision.face.Landmark;
 
+import java.util.List;
+
 /**
  * Created by Don Liang on 17/5/4.
  */
@@ -27,37 +30,13 @@ import com.google.android.gms.vision.face.Landmark;
  */
 public class FaceGraphic extends GraphicOverlay.Graphic {
 
-    private BitmapFactory.Options opt;
-
-    PointF facePosition;
     int faceId;
-    float faceWidth;
-    float faceHeight;
-    PointF faceCenter;
-    float isSmilingProbability = -1;
-    float eyeRightOpenProbability = -1;
-    float eyeLeftOpenProbability = -1;
-    float eulerZ;
-    float eulerY;
-    PointF leftEyePos = null;
-    PointF rightEyePos = null;
-    PointF noseBasePos = null;
-    PointF leftMouthCorner = null;
-    PointF rightMouthCorner = null;
-    PointF mouthBase = null;
-    PointF leftEar = null;
-    PointF rightEar = null;
-    PointF leftEarTip = null;
-    PointF rightEarTip = null;
-    PointF leftCheek = null;
-    PointF rightCheek = null;
+    // Position, landmarks and probabilities of the face as last drawn; only touched from draw().
+    private final FaceState mFaceState = new FaceState();
 
     private static final float THRESHOLD_MOUTH_OPEN = 0.2f;
     private static final float THRESHOLD_MOUTH_HALF_OPEN = 0.05f;
 
-    private Bitmap faceBitmap;
-    private Bitmap resizeFaceBitmap;
-
     enum FaceEmojiType {
         CAT,
         DOG,
@@ -68,16 +47,38 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
     Paint mPaint;
 
     private volatile Face mFace;
+    // Maps coordinates of the frame mFace was detected in to the overlay; guarded by itself.
+    private final FrameRegion mFrameRegion = new FrameRegion();
+    private final FrameRegion mDrawRegion = new FrameRegion();
+    // Smooths and extrapolates the face between detections; guarded by mFrameRegion.
+    private final FaceMotionModel mMotionModel = new FaceMotionModel();
+    private final float[] mMeasuredState = new float[FaceMotionModel.DIMENSIONS];
+    private volatile long mTimestampMillis;
+    // Position of mFace in the overlay, which its landmarks are relative to.
+    private float mDetectedX;
+    private float mDetectedY;
+    // Only touched from draw().
+    private final float[] mDrawState = new float[FaceMotionModel.DIMENSIONS];
+    private float mDrawDetectedX;
+    private float mDrawDetectedY;
     private Context mContext;
     private FaceEmojiType mFaceEmojiType;
+    private final EmojiBitmapCache mEmojiCache;
+    private final Paint mEmojiPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mEmojiRect = new RectF();
+    private final RectF mEmojiSourceRect = new RectF();
+    private final Matrix mEmojiMatrix = new Matrix();
+    private boolean mRotateEmoji = true;
 
-    public FaceGraphic(GraphicOverlay overlay, FaceEmojiType faceEmojiType, Context context) {
+    /**
+     * @param emojiCache the bitmaps to draw over the face, shared by the graphics of an overlay
+     */
+    public FaceGraphic(GraphicOverlay overlay, FaceEmojiType faceEmojiType, Context context,
+                       EmojiBitmapCache emojiCache) {
         super(overlay);
         mContext = context;
         mFaceEmojiType = faceEmojiType;
-
-        opt = new BitmapFactory.Options();
-        opt.inScaled = false;
+        mEmojiCache = emojiCache;
 
         initFaceGraphicPaint();
     }
@@ -95,114 +96,214 @@ public class FaceGraphic extends GraphicOverlay.Graphic {
 
     public void changeFaceEmojiType(FaceEmojiType faceEmojiType) {
         mFaceEmojiType = faceEmojiType;
+        postInvalidate();
+    }
+
+    /**
+     * Sets whether the emoji is filtered when scaled and rotated.  Unfiltered drawing is cheaper
+     * but blocky.  Default: true.
+     */
+    public void setEmojiFiltering(boolean filter) {
+        mEmojiPaint.setFilterBitmap(filter);
+    }
+
+    /**
+     * Sets whether the emoji is tilted along with the head (the face's Euler Z angle).
+     * Default: true.
+     */
+    public void setEmojiRotation(boolean rotate) {
+        mRotateEmoji = rotate;
     }
 
     /**
      * Updates the face instance from the detection of the most recent frame.  Invalidates the
      * relevant portions of the overlay to trigger a redraw.
+     *
+     * @param region          the region of the preview the frame was converted from, used to map
+     *                        the face coordinates to the overlay
+     * @param timestampMillis the capture time of that frame, in the
+     *                        {@link SystemClock#elapsedRealtime()} time base, used to estimate
+     *                        the face motion
      */
-    public void updateFace(Face face) {
-        mFace = face;
+    public void updateFace(Face face, FrameRegion region, long timestampMillis) {
+        synchronized (mFrameRegion) {
+            mFrameRegion.set(region);
+            mFace = face;
+            mMeasuredState[FaceMotionModel.X] = region.mapX(face.getPosition().x);
+            mMeasuredState[FaceMotionModel.Y] = region.mapY(face.getPosition().y);
+            mMeasuredState[FaceMotionModel.WIDTH] = region.mapSize(face.getWidth());
+            mMeasuredState[FaceMotionModel.HEIGHT] = region.mapSize(face.getHeight());
+            mMeasuredState[FaceMotionModel.EULER_Y] = face.getEulerY();
+            mMeasuredState[FaceMotionModel.EULER_Z] = face.getEulerZ();
+            mMotionModel.update(timestampMillis, mMeasuredState);
+            mTimestampMillis = timestampMillis;
+            mDetectedX = mMeasuredState[FaceMotionModel.X];
+            mDetectedY = mMeasuredState[FaceMotionModel.Y];
+        }
+        postInvalidate();
+    }
+
+    /**
+     * Moves the face to a position found by the template tracker between two detections.  Size,
+     * angles and landmarks are kept from the last detection; landmarks move along with the face.
+     *
+     * @param x               left edge in the overlay's coordinate system (see
+     *                        {@link FrameRegion#mapX})
+     * @param y               top edge in the overlay's coordinate system
+     * @param timestampMillis the timestamp of the tracked frame
+     */
+    public void updateTrackedFace(float x, float y, long timestampMillis) {
+        synchronized (mFrameRegion) {
+            if (mFace == null) {
+                return;
+            }
+            mMeasuredState[FaceMotionModel.X] = x;
+            mMeasuredState[FaceMotionModel.Y] = y;
+            mMotionModel.update(timestampMillis, mMeasuredState);
+            mTimestampMillis = timestampMillis;
+        }
         postInvalidate();
     }
 
     public void goneFace() {
-        mFace = null;
+        synchronized (mFrameRegion) {
+            mFace = null;
+            mMotionModel.reset();
+        }
         postInvalidate();
     }
 
+    @Override
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
     @Override
     public void draw(Canvas canvas) {
         Face face = mFace;
         if (face == null) {
             canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
-            if (resizeFaceBitmap != null) {
-                resizeFaceBitmap.eraseColor(Color.TRANSPARENT);
-            }
-            isSmilingProbability = -1;
-            eyeRightOpenProbability = -1;
-            eyeLeftOpenProbability = -1;
+            mFaceState.clear();
             return;
         }
 
-        facePosition = new PointF(translateX(face.getPosition().x), translateY(face.getPosition().y));
-        faceWidth = face.getWidth() * 4;
-        faceHeight = face.getHeight() * 4;
-        faceCenter = new PointF(translateX(face.getPosition().x + faceWidth / 8),
-                translateY(face.getPosition().y + faceHeight / 8));
-        isSmilingProbability = face.getIsSmilingProbability();
-        eyeRightOpenProbability = face.getIsRightEyeOpenProbability();
-        eyeLeftOpenProbability = face.getIsLeftEyeOpenProbability();
-        eulerY = face.getEulerY();
-        eulerZ = face.getEulerZ();
+        boolean moving;
+        synchronized (mFrameRegion) {
+            face = mFace;
+            if (face == null) {
+                return;
+            }
+            mDrawRegion.set(mFrameRegion);
+            // Frame timestamps are capture times, so predicting for now also makes up for the
+            // latency of the pipeline.
+            long now = SystemClock.elapsedRealtime();
+            mMotionModel.predict(now, mDrawState);
+            moving = mMotionModel.isMoving(now);
+            mDrawDetectedX = mDetectedX;
+            mDrawDetectedY = mDetectedY;
+        }
+        FrameRegion region = mDrawRegion;
+        float faceX = mDrawState[FaceMotionModel.X];
+        float faceY = mDrawState[FaceMotionModel.Y];
+        FaceState state = mFaceState;
+        float faceWidth = mDrawState[FaceMotionModel.WIDTH];
+        float faceHeight = mDrawState[FaceMotionModel.HEIGHT];
+        // Size in canvas pixels, through the overlay's scale factor, so that it follows the
+        // detection scale; the center is mapped in overlay units.
+        state.setBounds(translateX(faceX), translateY(faceY), scaleX(faceWidth), scaleY(faceHeight),
+                translateX(faceX + faceWidth / 2), translateY(faceY + faceHeight / 2));
+        state.setProbabilities(face.getIsSmilingProbability(), face.getIsLeftEyeOpenProbability(),
+                face.getIsRightEyeOpenProbability());
+        state.setAngles(mDrawState[FaceMotionModel.EULER_Y], mDrawState[FaceMotionModel.EULER_Z]);
 
-        calculateLandmarkType();
+        calculateLandmarkType(face, region, faceX - mDrawDetectedX, faceY - mDrawDetectedY);
+
+        if (moving) {
+            // Keep drawing predicted positions until the next detection arrives.
+            postInvalidate();
+        }
 
         // Draws a bounding box around the face
-        float left = faceCenter.x - faceWidth;
-        float top = faceCenter.y - faceHeight;
-        float right = faceCenter.x + faceWidth;
-        float bottom = faceCenter.y + faceHeight;
+        float left = state.centerX - state.width;
+        float top = state.centerY - state.height;
+        float right = state.centerX + state.width;
+        float bottom = state.centerY + state.height;
 //        canvas.drawRect(left, top, right, bottom, mPaint);
 
-        if (mFaceEmojiType == FaceEmojiType.CAT) {
-            if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_OPEN) {
-                faceBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.cat_face);
-            } else if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_HALF_OPEN) {
-                faceBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.cat_face_half);
-            } else {
-                faceBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.cat_face_normal);
+        drawEmoji(canvas, face, left, top, state.width * 2, state.height * 2);
+    }
+
+    /**
+     * Draws the emoji over the face rectangle, scaled and rotated by a matrix rather than through
+     * an intermediate bitmap.
+     */
+    private void drawEmoji(Canvas canvas, Face face, float left, float top, float width, float height) {
+        int resId = emojiResource(face);
+        Bitmap emoji = mEmojiCache.getSource(resId);
+        if (emoji == null || width < 1f || height < 1f) {
+            return;
+        }
+        if (width * 2 < emoji.getWidth() && height * 2 < emoji.getHeight()) {
+            // Shrinking by more than half skips source pixels even when filtering; start from a
+            // pre-scaled variant instead.
+            Bitmap variant = mEmojiCache.get(resId, (int) width, (int) height);
+            if (variant != null) {
+                emoji = variant;
             }
-        } else if (mFaceEmojiType == FaceEmojiType.DOG) {
-            faceBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.dog_face);
-        } else if (mFaceEmojiType == FaceEmojiType.KIM) {
-            faceBitmap = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.kim);
         }
+        mEmojiSourceRect.set(0, 0, emoji.getWidth(), emoji.getHeight());
+        mEmojiRect.set(left, top, left + width, top + height);
+        mEmojiMatrix.setRectToRect(mEmojiSourceRect, mEmojiRect, Matrix.ScaleToFit.FILL);
+        if (mRotateEmoji) {
+            // Euler Z is counter-clockwise in the image while canvas rotations are clockwise,
+            // and mirroring the preview reverses the direction again.
+            float degrees = isMirrored() ? mFaceState.eulerZ : -mFaceState.eulerZ;
+            mEmojiMatrix.postRotate(degrees, mEmojiRect.centerX(), mEmojiRect.centerY());
+        }
+        canvas.drawBitmap(emoji, mEmojiMatrix, mEmojiPaint);
+    }
 
-        resizeFaceBitmap = Bitmap.createScaledBitmap(faceBitmap, (int) faceWidth * 2, (int) faceHeight * 2, false);
-        canvas.drawBitmap(resizeFaceBitmap, left, top, null);
-    }
-
-    private void calculateLandmarkType() {
-        for (Landmark landmark : mFace.getLandmarks()) {
-            switch (landmark.getType()) {
-                case Landmark.LEFT_EYE:
-                    leftEyePos = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.RIGHT_EYE:
-                    rightEyePos = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.NOSE_BASE:
-                    noseBasePos = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.LEFT_MOUTH:
-                    leftMouthCorner = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.RIGHT_MOUTH:
-                    rightMouthCorner = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.BOTTOM_MOUTH:
-                    mouthBase = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.LEFT_EAR:
-                    leftEar = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.RIGHT_EAR:
-                    rightEar = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.LEFT_EAR_TIP:
-                    leftEarTip = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.RIGHT_EAR_TIP:
-                    rightEarTip = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.LEFT_CHEEK:
-                    leftCheek = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-                case Landmark.RIGHT_CHEEK:
-                    rightCheek = new PointF(translateX(landmark.getPosition().x), translateY(landmark.getPosition().y));
-                    break;
-            }
+    /**
+     * Returns the drawable matching the emoji type and, for the cat, how wide the mouth is open.
+     */
+    private int emojiResource(Face face) {
+        switch (mFaceEmojiType) {
+            case DOG:
+                return R.drawable.dog_face;
+            case KIM:
+                return R.drawable.kim;
+            default:
+                if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_OPEN) {
+                    return R.drawable.cat_face;
+                } else if (face.getIsSmilingProbability() > THRESHOLD_MOUTH_HALF_OPEN) {
+                    return R.drawable.cat_face_half;
+                }
+                return R.drawable.cat_face_normal;
+        }
+    }
+
+    /**
+     * Returns the face as last drawn.  Only valid on the UI thread, and overwritten by the next
+     * draw.
+     */
+    public FaceState getFaceState() {
+        return mFaceState;
+    }
+
+    /**
+     * Maps the landmarks of the face to the overlay, shifted along with the predicted face
+     * position.
+     */
+    private void calculateLandmarkType(Face face, FrameRegion region, float dx, float dy) {
+        FaceState state = mFaceState;
+        state.clearLandmarks();
+        // Indexed rather than for-each, so that no iterator is allocated per draw.
+        List<Landmark> landmarks = face.getLandmarks();
+        for (int i = 0, n = landmarks.size(); i < n; i++) {
+            Landmark landmark = landmarks.get(i);
+            PointF position = landmark.getPosition();
+            state.setLandmark(landmark.getType(), translateX(region.mapX(position.x) + dx),
+                    translateY(region.mapY(position.y) + dy));
         }
     }
 }
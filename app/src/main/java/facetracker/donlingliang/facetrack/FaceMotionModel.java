@@ -0,0 +1,122 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Alpha-beta (fixed gain, constant velocity) filter over the state of a face: position, size and
+ * Euler angles.  Detections update the filter at their frame timestamps; in between, the overlay
+ * draws the state predicted for the current time, so that its motion stays smooth whatever the
+ * detection rate.
+ * <p/>
+ * Predictions are extrapolated for at most {@link #MAX_PREDICTION_MILLIS} past the last detection
+ * so that the face does not drift away when detections stop.  Not thread safe.
+ */
+public class FaceMotionModel {
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int WIDTH = 2;
+    public static final int HEIGHT = 3;
+    public static final int EULER_Y = 4;
+    public static final int EULER_Z = 5;
+    public static final int DIMENSIONS = 6;
+
+    /**
+     * Weight of a measurement in the position estimate.
+     */
+    static final float ALPHA = 0.85f;
+
+    /**
+     * Weight of a measurement in the velocity estimate.
+     */
+    static final float BETA = 0.3f;
+
+    /**
+     * Covers the capture-to-display latency of the pipeline plus a few display frames.
+     */
+    static final long MAX_PREDICTION_MILLIS = 250;
+
+    /**
+     * Detections further apart than this restart the filter from the new measurement.
+     */
+    static final long MAX_GAP_MILLIS = 500;
+
+    private final float[] mState = new float[DIMENSIONS];
+    // Change per millisecond.
+    private final float[] mVelocity = new float[DIMENSIONS];
+    private long mTimeMillis;
+    private boolean mHasState;
+
+    /**
+     * Feeds the state measured on a frame.
+     *
+     * @param timeMillis timestamp of the frame the face was detected in
+     * @param state      measured values, indexed by {@link #X} to {@link #EULER_Z}
+     */
+    public void update(long timeMillis, float[] state) {
+        long dt = timeMillis - mTimeMillis;
+        if (!mHasState || dt > MAX_GAP_MILLIS || dt < 0) {
+            System.arraycopy(state, 0, mState, 0, DIMENSIONS);
+            for (int i = 0; i < DIMENSIONS; i++) {
+                mVelocity[i] = 0f;
+            }
+            mTimeMillis = timeMillis;
+            mHasState = true;
+            return;
+        }
+        if (dt == 0) {
+            // Same frame reported twice; keep the latest measurement.
+            System.arraycopy(state, 0, mState, 0, DIMENSIONS);
+            return;
+        }
+        for (int i = 0; i < DIMENSIONS; i++) {
+            float predicted = mState[i] + mVelocity[i] * dt;
+            float residual = state[i] - predicted;
+            mState[i] = predicted + ALPHA * residual;
+            mVelocity[i] += BETA * residual / dt;
+        }
+        mTimeMillis = timeMillis;
+    }
+
+    /**
+     * Writes into {@code out} the state predicted for the given time, in the time base of
+     * {@link #update}.  Returns false, leaving {@code out} untouched, if no state is known.
+     */
+    public boolean predict(long timeMillis, float[] out) {
+        if (!mHasState) {
+            return false;
+        }
+        long dt = Math.max(0, Math.min(timeMillis - mTimeMillis, MAX_PREDICTION_MILLIS));
+        for (int i = 0; i < DIMENSIONS; i++) {
+            out[i] = mState[i] + mVelocity[i] * dt;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true while a prediction for the given time still differs from the previous
+     * display frames, i.e. while the overlay needs to keep redrawing.
+     */
+    public boolean isMoving(long timeMillis) {
+        if (!mHasState || timeMillis - mTimeMillis >= MAX_PREDICTION_MILLIS) {
+            return false;
+        }
+        for (int i = 0; i < DIMENSIONS; i++) {
+            if (mVelocity[i] != 0f) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the timestamp of the last detection, in the time base of {@link #update}.
+     */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * Forgets the face, e.g. when it is lost.
+     */
+    public void reset() {
+        mHasState = false;
+    }
+}
@@ -0,0 +1,83 @@
+package facetracker.donlingliang.facetrack;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free single slot holding the latest item posted by a producer for a single consumer
+ * thread.
+ * <p/>
+ * {@link #post} never blocks: it swaps the new item into the slot and hands back whatever was
+ * there, so the producer can recycle an item the consumer never got to.  {@link #take} parks the
+ * consumer until an item is available or the mailbox is closed.
+ */
+public class FrameMailbox<T> {
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+    private volatile Thread mConsumer;
+    private volatile boolean mClosed;
+
+    /**
+     * Publishes an item, waking the consumer if it is parked.
+     *
+     * @return the item that was replaced before the consumer took it, or null
+     */
+    public T post(T item) {
+        T displaced = mSlot.getAndSet(item);
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return displaced;
+    }
+
+    /**
+     * Returns the latest item, waiting for one if the slot is empty.  Returns null once the mailbox
+     * is closed or the calling thread is interrupted.
+     */
+    public T take() {
+        mConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                T item = mSlot.getAndSet(null);
+                if (item != null) {
+                    return item;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return null;
+                }
+            }
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * Removes and returns the item currently in the slot without waiting, or null.
+     */
+    public T poll() {
+        return mSlot.getAndSet(null);
+    }
+
+    /**
+     * Opens the mailbox for a new session.
+     */
+    public void open() {
+        mClosed = false;
+    }
+
+    /**
+     * Makes {@link #take} return null, waking the consumer if it is parked.  Items still in the
+     * slot are left for {@link #poll}.
+     */
+    public void close() {
+        mClosed = true;
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package facetracker.donlingliang.facetrack;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated ring connecting two stages of the frame pipeline: one producer thread
+ * offers items and one consumer thread takes them.
+ * <p/>
+ * Neither side takes a lock and the producer never waits.  When the ring is full the
+ * {@link #DROP_OLDEST} policy evicts the item at the head so that the consumer always works on
+ * the most recent frames, while {@link #DROP_NEWEST} rejects the offered item so that the frames
+ * already queued are processed in order.  Either way the dropped item is handed back to the
+ * producer for recycling.  The consumer parks while the ring is empty.
+ * <p/>
+ * A ring of capacity one with {@link #DROP_OLDEST} behaves like a {@link FrameMailbox}.
+ */
+public class FrameRing<T> {
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+
+    private final Object[] mSlots;
+    private final int mDropPolicy;
+
+    // The consumer advances the head; so does the producer when it evicts the oldest item.
+    private final AtomicLong mHead = new AtomicLong();
+    // Only written by the producer, after the slot it publishes.
+    private volatile long mTail;
+
+    private volatile Thread mConsumer;
+    private volatile boolean mClosed;
+
+    private volatile long mOffered;
+    private volatile long mDropped;
+    private volatile int mHighWater;
+
+    public FrameRing(int capacity, int dropPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+        }
+        if (dropPolicy != DROP_OLDEST && dropPolicy != DROP_NEWEST) {
+            throw new IllegalArgumentException("Invalid drop policy: " + dropPolicy);
+        }
+        mSlots = new Object[capacity];
+        mDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Queues an item, waking the consumer if it is parked.  Producer thread only.
+     *
+     * @return the item dropped to make room (the oldest queued item, or {@code item} itself
+     * depending on the drop policy), or null if nothing was dropped
+     */
+    public T offer(T item) {
+        mOffered++;
+        T dropped = null;
+        long tail = mTail;
+        while (tail - mHead.get() >= mSlots.length) {
+            if (mDropPolicy == DROP_NEWEST) {
+                mDropped++;
+                return item;
+            }
+            long head = mHead.get();
+            T oldest = slot(head);
+            if (mHead.compareAndSet(head, head + 1)) {
+                // The slot is ours now; the consumer lost the race for it.
+                dropped = oldest;
+                mDropped++;
+                break;
+            }
+        }
+        mSlots[(int) (tail % mSlots.length)] = item;
+        mTail = tail + 1;
+
+        int size = (int) (tail + 1 - mHead.get());
+        if (size > mHighWater) {
+            mHighWater = size;
+        }
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return dropped;
+    }
+
+    /**
+     * Removes and returns the oldest item, or null if the ring is empty.  Consumer thread only,
+     * and the producer thread while no consumer is running.
+     */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail) {
+                return null;
+            }
+            T item = slot(head);
+            if (mHead.compareAndSet(head, head + 1)) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest item, waiting for one if the ring is empty.  Returns null once the ring is
+     * closed or the calling thread is interrupted.
+     */
+    public T take() {
+        mConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                if (mClosed) {
+                    return null;
+                }
+                T item = poll();
+                if (item != null) {
+                    return item;
+                }
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    return null;
+                }
+            }
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * Opens the ring for a new session.
+     */
+    public void open() {
+        mClosed = false;
+    }
+
+    /**
+     * Makes {@link #take} return null, waking the consumer if it is parked.  Queued items are left
+     * for {@link #poll}.
+     */
+    public void close() {
+        mClosed = true;
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T slot(long index) {
+        return (T) mSlots[(int) (index % mSlots.length)];
+    }
+
+    public int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Returns the number of queued items.
+     */
+    public int size() {
+        return (int) Math.max(0, mTail - mHead.get());
+    }
+
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns the largest number of items ever queued at once.
+     */
+    public int getHighWater() {
+        return mHighWater;
+    }
+}
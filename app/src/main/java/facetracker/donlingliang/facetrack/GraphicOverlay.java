@@ -2,13 +2,17 @@ package facetracker.donlingliang.facetrack;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.View;
 
 import com.google.android.gms.vision.CameraSource;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A view which renders a series of custom graphics to be overlayed on top of an associated preview
@@ -27,15 +31,70 @@ import java.util.Set;
  * <li>{@link Graphic#translateX(float)} and {@link Graphic#translateY(float)} adjust the coordinate
  * from the preview's coordinate system to the view coordinate system.</li>
  * </ol>
+ * <p>
+ * Graphics are kept in an immutable array which writers replace under a lock, copying on write.
+ * Drawing only reads the latest array, so adding and removing graphics from the detector thread
+ * never waits for the UI thread to finish drawing, and drawing never waits for writers.  The
+ * camera info is published the same way, as one immutable object, so that a draw never sees the
+ * size of one camera with the facing of another.  {@link #getWritesDuringDrawCount()} counts the
+ * changes made while a draw was in progress, each of which used to wait for the draw to finish.
+ * <p>
+ * Redraw requests from any thread are coalesced into at most one invalidation per display frame,
+ * issued from a {@link Choreographer} frame callback, and dropped if the view was drawn for
+ * another reason in the meantime.
  */
 public class GraphicOverlay extends View {
-    private final Object mLock = new Object();
-    private int mPreviewWidth;
+    private static final Graphic[] NO_GRAPHICS = new Graphic[0];
+
+    // Serializes writers only; onDraw never takes it.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private volatile CameraInfo mCameraInfo = new CameraInfo(0, 0, CameraSource.CAMERA_FACING_BACK);
+    // The camera info and scale factors of the current draw; UI thread only.
+    private CameraInfo mDrawCameraInfo = mCameraInfo;
     private float mWidthScaleFactor = 1.0f;
-    private int mPreviewHeight;
     private float mHeightScaleFactor = 1.0f;
-    private int mFacing = CameraSource.CAMERA_FACING_BACK;
-    private Set<Graphic> mGraphics = new HashSet<>();
+    private volatile Graphic[] mGraphics = NO_GRAPHICS;
+    private volatile PipelineMetrics mMetrics;
+    // Capture time of the newest frame already recorded as displayed; UI thread only.
+    private long mLastDisplayedMillis;
+    // Set by the UI thread while onDraw runs.
+    private volatile boolean mDrawing;
+    // Lock statistics, written while holding mLock.
+    private volatile long mWrites;
+    private volatile long mWritesDuringDraw;
+    private volatile long mContendedWrites;
+    private volatile long mContendedWaitNanos;
+
+    private final Choreographer mChoreographer;
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame();
+        }
+    };
+    // Set when something changed since the last draw.
+    private final AtomicBoolean mDirty = new AtomicBoolean();
+    // Set while a frame callback is posted and has not run yet.
+    private final AtomicBoolean mFrameScheduled = new AtomicBoolean();
+    private final AtomicLong mRedrawsRequested = new AtomicLong();
+    // Only touched on the UI thread.
+    private volatile long mRedrawsPerformed;
+    private volatile long mFramesSkipped;
+
+    /**
+     * Preview size and facing of the camera, replaced as a whole.
+     */
+    private static final class CameraInfo {
+        final int previewWidth;
+        final int previewHeight;
+        final int facing;
+
+        CameraInfo(int previewWidth, int previewHeight, int facing) {
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.facing = facing;
+        }
+    }
 
     /**
      * Base class for a custom graphics object to be rendered within the graphic overlay.  Subclass
@@ -83,13 +142,21 @@ public class GraphicOverlay extends View {
          * system.
          */
         public float translateX(float x) {
-            if (mOverlay.mFacing == CameraSource.CAMERA_FACING_FRONT) {
+            if (isMirrored()) {
                 return mOverlay.getWidth() - scaleX(x);
             } else {
                 return scaleX(x);
             }
         }
 
+        /**
+         * Returns true if the preview is mirrored in the view, as for the front camera, in which
+         * case rotations appear reversed.
+         */
+        public boolean isMirrored() {
+            return mOverlay.mDrawCameraInfo.facing == CameraSource.CAMERA_FACING_FRONT;
+        }
+
         /**
          * Adjusts the y coordinate from the preview's coordinate system to the view coordinate
          * system.
@@ -98,56 +165,217 @@ public class GraphicOverlay extends View {
             return scaleY(y);
         }
 
+        /**
+         * Returns the capture time, in the {@link SystemClock#elapsedRealtime()} time base, of the
+         * frame whose result this graphic draws, or 0 if unknown.  Used to record the
+         * capture-to-display latency.
+         */
+        public long getTimestampMillis() {
+            return 0;
+        }
+
+        /**
+         * Asks the overlay to redraw on the next display frame.  Safe to call from any thread,
+         * including from {@link #draw(Canvas)} to animate; requests within a frame are coalesced.
+         */
         public void postInvalidate() {
-            mOverlay.postInvalidate();
+            mOverlay.requestRedraw(true);
         }
     }
 
     public GraphicOverlay(Context context, AttributeSet attrs) {
         super(context, attrs);
+        // Views are inflated on the UI thread, whose choreographer paces the redraws.
+        mChoreographer = Choreographer.getInstance();
     }
 
     /**
      * Removes all graphics from the overlay.
      */
     public void clear() {
-        synchronized (mLock) {
-            mGraphics.clear();
+        boolean changed;
+        lock();
+        try {
+            changed = mGraphics.length != 0;
+            mGraphics = NO_GRAPHICS;
+        } finally {
+            mLock.unlock();
         }
-        postInvalidate();
+        requestRedraw(changed);
     }
 
     /**
-     * Adds a graphic to the overlay.
+     * Adds a graphic to the overlay.  Adding a graphic twice has no effect.
      */
     public void add(Graphic graphic) {
-        synchronized (mLock) {
-            mGraphics.add(graphic);
+        boolean changed = false;
+        lock();
+        try {
+            Graphic[] graphics = mGraphics;
+            if (indexOf(graphics, graphic) < 0) {
+                changed = true;
+                Graphic[] added = new Graphic[graphics.length + 1];
+                System.arraycopy(graphics, 0, added, 0, graphics.length);
+                added[graphics.length] = graphic;
+                mGraphics = added;
+            }
+        } finally {
+            mLock.unlock();
         }
-        postInvalidate();
+        requestRedraw(changed);
     }
 
     /**
      * Removes a graphic from the overlay.
      */
     public void remove(Graphic graphic) {
-        synchronized (mLock) {
-            mGraphics.remove(graphic);
+        boolean changed = false;
+        lock();
+        try {
+            Graphic[] graphics = mGraphics;
+            int index = indexOf(graphics, graphic);
+            if (index >= 0) {
+                changed = true;
+                Graphic[] removed = new Graphic[graphics.length - 1];
+                System.arraycopy(graphics, 0, removed, 0, index);
+                System.arraycopy(graphics, index + 1, removed, index, removed.length - index);
+                mGraphics = removed;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        requestRedraw(changed);
+    }
+
+    private static int indexOf(Graphic[] graphics, Graphic graphic) {
+        for (int i = 0; i < graphics.length; i++) {
+            if (graphics[i] == graphic) {
+                return i;
+            }
         }
-        postInvalidate();
+        return -1;
+    }
+
+    /**
+     * Takes the writer lock, counting the times it was held by another writer and how long it
+     * took to get it then, and the times a draw was in progress.
+     */
+    private void lock() {
+        if (!mLock.tryLock()) {
+            long startNanos = System.nanoTime();
+            mLock.lock();
+            mContendedWrites++;
+            mContendedWaitNanos += System.nanoTime() - startNanos;
+        }
+        mWrites++;
+        if (mDrawing) {
+            mWritesDuringDraw++;
+        }
+    }
+
+    /**
+     * Returns the number of times the graphics were changed.
+     */
+    public long getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * Returns the number of changes to the graphics made while a draw was in progress.  Drawing
+     * does not take the writer lock, so these went ahead at once; while onDraw held the lock,
+     * each of them waited for the draw to finish.
+     */
+    public long getWritesDuringDrawCount() {
+        return mWritesDuringDraw;
+    }
+
+    /**
+     * Returns the number of changes that had to wait for another one to finish.  Only other
+     * changes hold the lock, so this is writer against writer contention; drawing never waits.
+     */
+    public long getContendedWriteCount() {
+        return mContendedWrites;
+    }
+
+    /**
+     * Returns the total time changes spent waiting for another one, in nanoseconds.
+     */
+    public long getContendedWaitNanos() {
+        return mContendedWaitNanos;
+    }
+
+    /**
+     * Sets the metrics of the pipeline whose results are drawn, or null.  The overlay records when
+     * the result of a new frame is first drawn and, if histograms are enabled, how long drawing
+     * takes.  Must be called on the UI thread.
+     */
+    public void setPipelineMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+        mLastDisplayedMillis = 0;
     }
 
     /**
      * Sets the camera attributes for size and facing direction, which informs how to transform
-     * image coordinates later.
+     * image coordinates later.  Takes effect from the next draw, all at once.
      */
     public void setCameraInfo(int previewWidth, int previewHeight, int facing) {
-        synchronized (mLock) {
-            mPreviewWidth = previewWidth;
-            mPreviewHeight = previewHeight;
-            mFacing = facing;
+        mCameraInfo = new CameraInfo(previewWidth, previewHeight, facing);
+        requestRedraw(true);
+    }
+
+    /**
+     * Counts a redraw request and, if something changed, schedules an invalidation for the next
+     * display frame unless one is already scheduled.  Safe to call from any thread.
+     */
+    void requestRedraw(boolean changed) {
+        mRedrawsRequested.incrementAndGet();
+        if (!changed) {
+            return;
+        }
+        mDirty.set(true);
+        if (mFrameScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(mFrameCallback);
+        }
+    }
+
+    private void onFrame() {
+        mFrameScheduled.set(false);
+        if (mDirty.get()) {
+            mRedrawsPerformed++;
+            invalidate();
+        } else {
+            // Drawn since the request, e.g. after a layout pass.
+            mFramesSkipped++;
         }
-        postInvalidate();
+    }
+
+    /**
+     * Returns the number of redraws asked for, through {@link Graphic#postInvalidate()} or by
+     * changing the graphics or camera info.
+     */
+    public long getRedrawRequestCount() {
+        return mRedrawsRequested.get();
+    }
+
+    /**
+     * Returns the number of invalidations actually issued, at most one per display frame.
+     */
+    public long getRedrawCount() {
+        return mRedrawsPerformed;
+    }
+
+    /**
+     * Returns the number of scheduled frames skipped because the overlay had been drawn already.
+     */
+    public long getSkippedFrameCount() {
+        return mFramesSkipped;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        mFrameScheduled.set(false);
     }
 
     /**
@@ -156,17 +384,50 @@ public class GraphicOverlay extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        // Cleared before drawing, so that changes made while drawing schedule another frame.
+        mDirty.set(false);
+        mDrawing = true;
+        try {
+            drawGraphics(canvas, mCameraInfo);
+        } finally {
+            mDrawing = false;
+        }
+    }
 
-        synchronized (mLock) {
-            if ((mPreviewWidth != 0) && (mPreviewHeight != 0)) {
-                mWidthScaleFactor = (float) canvas.getWidth() / (float) mPreviewWidth;
-                mHeightScaleFactor = (float) canvas.getHeight() / (float) mPreviewHeight;
-            }
+    private void drawGraphics(Canvas canvas, CameraInfo cameraInfo) {
+        Tracing.beginSection("GraphicOverlay.draw");
+        PipelineMetrics metrics = mMetrics;
+        boolean timed = metrics != null && metrics.isHistogramsEnabled();
+        long startNanos = timed ? System.nanoTime() : 0;
+        mDrawCameraInfo = cameraInfo;
+        int previewWidth = cameraInfo.previewWidth;
+        int previewHeight = cameraInfo.previewHeight;
+        if ((previewWidth != 0) && (previewHeight != 0)) {
+            mWidthScaleFactor = (float) canvas.getWidth() / (float) previewWidth;
+            mHeightScaleFactor = (float) canvas.getHeight() / (float) previewHeight;
+        }
 
-            for (Graphic graphic : mGraphics) {
-                graphic.draw(canvas);
-            }
+        // Draw the latest snapshot; graphics added or removed meanwhile show up next frame.
+        Graphic[] graphics = mGraphics;
+        long newestMillis = 0;
+        for (Graphic graphic : graphics) {
+            graphic.draw(canvas);
+            newestMillis = Math.max(newestMillis, graphic.getTimestampMillis());
+        }
+        if (metrics != null && newestMillis > mLastDisplayedMillis) {
+            mLastDisplayedMillis = newestMillis;
+            metrics.recordRendered();
+            Tracing.instant("GraphicOverlay.rendered");
+            // elapsedRealtimeNanos() needs API 17; the millisecond clock is the same time base.
+            long nowNanos = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                    ? SystemClock.elapsedRealtimeNanos() : SystemClock.elapsedRealtime() * 1000000;
+            metrics.getLatencyRecorder().record(LatencyRecorder.DISPLAYED, newestMillis * 1000000,
+                    nowNanos);
+        }
+        if (timed) {
+            metrics.recordStage(PipelineMetrics.STAGE_DRAW, System.nanoTime() - startNanos);
         }
+        Tracing.endSection();
     }
 }
 
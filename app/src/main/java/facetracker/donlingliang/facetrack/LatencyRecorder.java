@@ -0,0 +1,124 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Records how old frames are when they reach the checkpoints of the pipeline, measured from the
+ * moment the sensor captured them: once converted for detection ({@link #CONVERTED}), once the
+ * detector or the template tracker is done with them ({@link #DETECTED}), and when the overlay
+ * first draws their result ({@link #DISPLAYED}).
+ * <p/>
+ * All times are {@link android.os.SystemClock#elapsedRealtimeNanos()} values; {@link Camera2Source}
+ * converts sensor timestamps to that time base.  Besides the running count, mean and maximum,
+ * latencies go into a {@link LatencyHistogram} per checkpoint while histograms are enabled.
+ * Methods are thread safe.
+ */
+public class LatencyRecorder {
+    public static final int CONVERTED = 0;
+    public static final int DETECTED = 1;
+    public static final int DISPLAYED = 2;
+    public static final int CHECKPOINTS = 3;
+
+    static final String[] CHECKPOINT_NAMES = {"converted", "detected", "displayed"};
+
+    /**
+     * Notified of the latency of every frame reaching a checkpoint, on the thread that recorded
+     * it.
+     */
+    public interface Listener {
+        void onLatency(int checkpoint, long captureNanos, long latencyNanos);
+    }
+
+    private final long[] mCount = new long[CHECKPOINTS];
+    private final long[] mTotalNanos = new long[CHECKPOINTS];
+    private final long[] mMaxNanos = new long[CHECKPOINTS];
+    private final long[] mLastNanos = new long[CHECKPOINTS];
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[CHECKPOINTS];
+    private volatile boolean mHistogramsEnabled;
+    private volatile Listener mListener;
+
+    public LatencyRecorder() {
+        for (int i = 0; i < CHECKPOINTS; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records that the frame captured at {@code captureNanos} reached a checkpoint at
+     * {@code nowNanos}.  A negative latency, which means that the two times are not in the same
+     * time base (e.g. a sensor timestamp not converted yet), is ignored.
+     */
+    public void record(int checkpoint, long captureNanos, long nowNanos) {
+        long latency = nowNanos - captureNanos;
+        if (latency < 0) {
+            return;
+        }
+        synchronized (this) {
+            mCount[checkpoint]++;
+            mTotalNanos[checkpoint] += latency;
+            mLastNanos[checkpoint] = latency;
+            if (latency > mMaxNanos[checkpoint]) {
+                mMaxNanos[checkpoint] = latency;
+            }
+        }
+        if (mHistogramsEnabled) {
+            mHistograms[checkpoint].record(latency);
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLatency(checkpoint, captureNanos, latency);
+        }
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void setHistogramsEnabled(boolean enabled) {
+        mHistogramsEnabled = enabled;
+    }
+
+    /**
+     * Returns the distribution of the latencies recorded at a checkpoint while histograms were
+     * enabled.
+     */
+    public LatencyHistogram getHistogram(int checkpoint) {
+        return mHistograms[checkpoint];
+    }
+
+    public synchronized long getCount(int checkpoint) {
+        return mCount[checkpoint];
+    }
+
+    /**
+     * Returns the latency of the last frame that reached the checkpoint.
+     */
+    public synchronized long getLastNanos(int checkpoint) {
+        return mLastNanos[checkpoint];
+    }
+
+    public synchronized long getMeanNanos(int checkpoint) {
+        long count = mCount[checkpoint];
+        return count == 0 ? 0 : mTotalNanos[checkpoint] / count;
+    }
+
+    public synchronized long getMaxNanos(int checkpoint) {
+        return mMaxNanos[checkpoint];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < CHECKPOINTS; i++) {
+            mCount[i] = 0;
+            mTotalNanos[i] = 0;
+            mMaxNanos[i] = 0;
+            mLastNanos[i] = 0;
+            mHistograms[i].reset();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LatencyRecorder{converted=" + getMeanNanos(CONVERTED) / 1000000 + "ms"
+                + ", detected=" + getMeanNanos(DETECTED) / 1000000 + "ms"
+                + ", displayed=" + getMeanNanos(DISPLAYED) / 1000000 + "ms"
+                + ", maxDisplayed=" + getMaxNanos(DISPLAYED) / 1000000 + "ms}";
+    }
+}
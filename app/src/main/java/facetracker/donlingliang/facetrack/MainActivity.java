@@ -28,6 +28,12 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "FaceKamTracker";
     private static final int REQUEST_CAMERA_PERMISSION = 200;
+    private static final float DETECTIONS_PER_SECOND = 15f;
+    private static final int MOTION_THRESHOLD = 3;
+    private static final int MOTION_REFRESH_INTERVAL = 10;
+    private static final int TRACK_DETECTION_INTERVAL = 3;
+    // Room for a handful of full screen emoji variants.
+    private static final long EMOJI_CACHE_BYTES = 16 * 1024 * 1024;
     private static final int REQUEST_STORAGE_PERMISSION = 201;
 
     private Camera2Source mCamera2Source;
@@ -36,6 +42,7 @@ public class MainActivity extends AppCompatActivity {
     private GraphicOverlay mGraphicOverlay;
     private FaceGraphic mFaceGraphic;
     private Context mContext;
+    private EmojiBitmapCache mEmojiCache;
 
     private FaceGraphic.FaceEmojiType mFaceEmojiType = FaceGraphic.FaceEmojiType.CAT;
     private boolean isFrontFaceCamera = true;
@@ -46,8 +53,12 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         ButterKnife.bind(this);
+        if (BuildConfig.DEBUG) {
+            Tracing.setTracer(new SystraceTracer());
+        }
 
         mContext = getApplicationContext();
+        mEmojiCache = new EmojiBitmapCache(getResources(), EMOJI_CACHE_BYTES);
         mPreview = (CameraSourcePreview) findViewById(R.id.preview);
         mGraphicOverlay = (GraphicOverlay) findViewById(R.id.faceOverlay);
 
@@ -86,7 +97,6 @@ public class MainActivity extends AppCompatActivity {
         mGraphicOverlay.clear();
         mFaceEmojiType = randomFace();
         mFaceGraphic.changeFaceEmojiType(mFaceEmojiType);
-        mFaceGraphic.postInvalidate();
     }
 
     private FaceGraphic.FaceEmojiType randomFace() {
@@ -109,7 +119,7 @@ public class MainActivity extends AppCompatActivity {
         mPreviewFaceDetector = new FaceDetector.Builder(mContext)
                 .setClassificationType(FaceDetector.ALL_CLASSIFICATIONS)
                 .setLandmarkType(FaceDetector.ALL_LANDMARKS)
-                .setMode(FaceDetector.ACCURATE_MODE)
+                .setMode(FaceDetector.FAST_MODE)
                 .setProminentFaceOnly(true)
                 .setTrackingEnabled(true)
                 .build();
@@ -124,6 +134,10 @@ public class MainActivity extends AppCompatActivity {
                 .setFocusMode(Camera2Source.CAMERA_AF_AUTO)
                 .setFlashMode(Camera2Source.CAMERA_FLASH_AUTO)
                 .setFacing(Camera2Source.CAMERA_FACING_FRONT)
+                .setDownscaleFilter(Camera2Source.DOWNSCALE_BOX)
+                .setDetectionGovernor(DetectionGovernor.forRate(DETECTIONS_PER_SECOND))
+                .setMotionGate(MOTION_THRESHOLD, MOTION_REFRESH_INTERVAL)
+                .setDetectThenTrack(TRACK_DETECTION_INTERVAL, new FaceTrackForwarder())
                 .build();
 
         startCameraSource();
@@ -149,6 +163,9 @@ public class MainActivity extends AppCompatActivity {
                 .setFocusMode(Camera2Source.CAMERA_AF_AUTO)
                 .setFlashMode(Camera2Source.CAMERA_FLASH_AUTO)
                 .setFacing(Camera2Source.CAMERA_FACING_BACK)
+                .setDownscaleFilter(Camera2Source.DOWNSCALE_BOX)
+                .setDetectionGovernor(DetectionGovernor.forRate(DETECTIONS_PER_SECOND))
+                .setMotionGate(MOTION_THRESHOLD, MOTION_REFRESH_INTERVAL)
                 .build();
 
         startCameraSource();
@@ -156,6 +173,7 @@ public class MainActivity extends AppCompatActivity {
 
     private void startCameraSource() {
         if (mCamera2Source != null) {
+            mCamera2Source.getMetrics().setHistogramsEnabled(BuildConfig.DEBUG);
             try {
                 mPreview.start(mCamera2Source, mGraphicOverlay);
             } catch (IOException e) {
@@ -168,6 +186,32 @@ public class MainActivity extends AppCompatActivity {
 
     private void stopCameraSource() {
         mPreview.stop();
+        if (mCamera2Source != null && mCamera2Source.getMetrics().isHistogramsEnabled()) {
+            Log.d(TAG, "Pipeline metrics: " + mCamera2Source.getMetrics().toJson());
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, mEmojiCache.toString());
+            Log.d(TAG, "Overlay writes: " + mGraphicOverlay.getWriteCount()
+                    + ", during draw: " + mGraphicOverlay.getWritesDuringDrawCount()
+                    + ", contended: " + mGraphicOverlay.getContendedWriteCount()
+                    + ", waited " + mGraphicOverlay.getContendedWaitNanos() / 1000 + " us");
+            Log.d(TAG, "Overlay redraws requested: " + mGraphicOverlay.getRedrawRequestCount()
+                    + ", performed: " + mGraphicOverlay.getRedrawCount()
+                    + ", skipped: " + mGraphicOverlay.getSkippedFrameCount());
+        }
+    }
+
+    /**
+     * Moves the face graphic to the positions found by the template tracker between detections.
+     */
+    private class FaceTrackForwarder implements Camera2Source.FaceTrackCallback {
+        @Override
+        public void onFaceTracked(float x, float y, float width, float height, long timestampMillis) {
+            FaceGraphic faceGraphic = mFaceGraphic;
+            if (faceGraphic != null) {
+                faceGraphic.updateTrackedFace(x, y, timestampMillis);
+            }
+        }
     }
 
     private class GraphicFaceTrackerFactory implements MultiProcessor.Factory<Face> {
@@ -178,9 +222,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private class GraphicFaceTracker extends Tracker<Face> {
+        private final FrameRegion mFrameRegion = new FrameRegion();
 
         GraphicFaceTracker() {
-            mFaceGraphic = new FaceGraphic(mGraphicOverlay, mFaceEmojiType, mContext);
+            mFaceGraphic = new FaceGraphic(mGraphicOverlay, mFaceEmojiType, mContext, mEmojiCache);
         }
 
         /**
@@ -196,8 +241,11 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onUpdate(FaceDetector.Detections<Face> detectionResults, Face face) {
+            int frameId = detectionResults.getFrameMetadata().getId();
+            mCamera2Source.getFrameRegion(frameId, mFrameRegion);
+            mCamera2Source.reportFace(frameId, face.getPosition().x, face.getPosition().y, face.getWidth(), face.getHeight());
             mGraphicOverlay.add(mFaceGraphic);
-            mFaceGraphic.updateFace(face);
+            mFaceGraphic.updateFace(face, mFrameRegion, detectionResults.getFrameMetadata().getTimestampMillis());
         }
 
         /**
@@ -207,6 +255,7 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onMissing(FaceDetector.Detections<Face> detectionResults) {
+            mCamera2Source.reportFaceLost();
             mFaceGraphic.goneFace();
             mGraphicOverlay.remove(mFaceGraphic);
         }
@@ -217,6 +266,7 @@ public class MainActivity extends AppCompatActivity {
          */
         @Override
         public void onDone() {
+            mCamera2Source.reportFaceLost();
             mFaceGraphic.goneFace();
             mGraphicOverlay.remove(mFaceGraphic);
         }
@@ -262,11 +312,21 @@ public class MainActivity extends AppCompatActivity {
         isPausedBefore = true;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            // Decoded again on the next draw.
+            mEmojiCache.clear();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         stopCameraSource();
         mGraphicOverlay.clear();
+        mEmojiCache.clear();
         if (mPreviewFaceDetector != null) {
             mPreviewFaceDetector.release();
         }
@@ -0,0 +1,70 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A converted preview frame on its way to the detector: the detection buffer together with the
+ * metadata needed to build a {@link com.google.android.gms.vision.Frame} and to map detections
+ * back to the preview.
+ * <p/>
+ * Instances are recycled through a {@link Stack} so that no holder is allocated per frame.
+ */
+public final class PendingFrame {
+    ByteBuffer data;
+    int width;
+    int height;
+    int id;
+    long timestampMillis;
+    // Sensor capture time, in the SystemClock.elapsedRealtimeNanos() time base.
+    long captureNanos;
+    final FrameRegion region = new FrameRegion();
+
+    // Link used while the frame sits in a Stack.
+    private PendingFrame mNext;
+
+    /**
+     * Drops the reference to the detection buffer.
+     */
+    void clear() {
+        data = null;
+    }
+
+    /**
+     * Lock-free stack of free frame holders, linked through the holders themselves.  Any thread
+     * may push, but only one thread may pop, which rules out the ABA problem of a Treiber stack.
+     */
+    static final class Stack {
+        private final AtomicReference<PendingFrame> mHead = new AtomicReference<>();
+
+        Stack(int capacity) {
+            for (int i = 0; i < capacity; i++) {
+                push(new PendingFrame());
+            }
+        }
+
+        void push(PendingFrame frame) {
+            frame.clear();
+            PendingFrame head;
+            do {
+                head = mHead.get();
+                frame.mNext = head;
+            } while (!mHead.compareAndSet(head, frame));
+        }
+
+        /**
+         * Returns a free holder, or a new one if all of them are in flight.
+         */
+        PendingFrame pop() {
+            PendingFrame head;
+            do {
+                head = mHead.get();
+                if (head == null) {
+                    return new PendingFrame();
+                }
+            } while (!mHead.compareAndSet(head, head.mNext));
+            head.mNext = null;
+            return head;
+        }
+    }
+}
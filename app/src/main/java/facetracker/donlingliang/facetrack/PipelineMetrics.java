@@ -0,0 +1,428 @@
+package facetracker.donlingliang.facetrack;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running counters describing the work done by the {@link Camera2Source} frame pipeline.
+ * <p/>
+ * Each counter is either written from the single pipeline thread named next to its field, or
+ * atomic when several threads write it.  Counters may be read from any thread; reads are not
+ * synchronized with each other, so a set of getters called in a row is only approximately
+ * consistent.
+ * <p/>
+ * Once the pipeline is stopped, every frame the camera produced is counted in exactly one place:
+ * stalled in the camera because the image reader was full, skipped by the governor, dropped by
+ * the convert or detect ring, found unchanged by the motion gate, followed by the template
+ * tracker, detected, or discarded (abandoned when stopping, or lost to an exception while
+ * converting or detecting).  While running, the frames in between are reported by
+ * {@link #getFramesInFlight}.  Rendering is counted separately since the overlay only draws the
+ * newest result, and so are frames missing from a recording, since recording is a side branch
+ * that does not take frames out of the pipeline.
+ * <p/>
+ * When enabled with {@link #setHistogramsEnabled}, the time spent on each frame by every stage,
+ * and the capture-to-checkpoint latencies of the {@link LatencyRecorder}, are also recorded into
+ * {@link LatencyHistogram}s.  They are off by default; while off, recording a stage duration
+ * returns before touching any histogram.  {@link #toJson} dumps everything for offline analysis.
+ */
+public class PipelineMetrics {
+    public static final int STAGE_ACQUIRE = 0;
+    public static final int STAGE_CONVERT = 1;
+    public static final int STAGE_DETECT = 2;
+    public static final int STAGE_DRAW = 3;
+    public static final int STAGES = 4;
+
+    private static final String[] STAGE_NAMES = {"acquire", "convert", "detect", "draw"};
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99"};
+
+    private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[STAGES];
+    private final LatencyRecorder mLatencyRecorder = new LatencyRecorder();
+    private volatile boolean mHistogramsEnabled;
+    private volatile StageStats[] mStageStats;
+
+    // Written by the capture callback and the image reader listener, on the camera background
+    // thread.
+    private volatile long mFramesProduced;
+    private volatile long mFramesAcquired;
+    // Written by the convert thread.
+    private volatile long mFramesConverted;
+    private volatile long mBytesConverted;
+    private volatile long mBytesSaved;
+    // Written by the image reader listener, on the camera background thread.
+    private volatile long mConvertDropped;
+    // Written by the convert thread, which offers into the detect ring.
+    private volatile long mDetectDropped;
+    // Written by the image reader listener, on the camera background thread.
+    private volatile long mFramesSkipped;
+    // Written by the convert thread.
+    private volatile long mFramesUnchanged;
+    // Written by the processing thread.
+    private volatile long mFramesTracked;
+    // Incremented by every detector worker of a pool.
+    private final AtomicLong mFramesDetected = new AtomicLong();
+    // Incremented by the pipeline threads on errors, and by the thread stopping the pipeline.
+    private final AtomicLong mFramesDiscarded = new AtomicLong();
+    // Written by the overlay, on the UI thread.
+    private volatile long mFramesRendered;
+    // Written by the image reader listener, on the camera background thread.
+    private volatile long mRecordingDropped;
+
+    public PipelineMetrics() {
+        for (int i = 0; i < STAGES; i++) {
+            mStageHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Turns the stage and latency histograms on or off.  Counters are always maintained.
+     */
+    public void setHistogramsEnabled(boolean enabled) {
+        mHistogramsEnabled = enabled;
+        mLatencyRecorder.setHistogramsEnabled(enabled);
+    }
+
+    public boolean isHistogramsEnabled() {
+        return mHistogramsEnabled;
+    }
+
+    /**
+     * Records the time a stage spent on one frame, if histograms are enabled.
+     *
+     * @param stage one of the STAGE_* constants
+     */
+    void recordStage(int stage, long nanos) {
+        if (mHistogramsEnabled) {
+            mStageHistograms[stage].record(nanos);
+        }
+    }
+
+    /**
+     * Attaches the utilization counters of the pipeline stages, so that they are part of the
+     * dump.
+     */
+    void setStageStats(StageStats[] stageStats) {
+        mStageStats = stageStats;
+    }
+
+    /**
+     * Returns the per-frame durations recorded for a stage.
+     *
+     * @param stage one of the STAGE_* constants
+     */
+    public LatencyHistogram getStageHistogram(int stage) {
+        return mStageHistograms[stage];
+    }
+
+    /**
+     * Returns the recorder of capture-to-checkpoint latencies.
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return mLatencyRecorder;
+    }
+
+    /**
+     * Clears the histograms and latencies; the frame counters keep running.
+     */
+    public void resetHistograms() {
+        for (int i = 0; i < STAGES; i++) {
+            mStageHistograms[i].reset();
+        }
+        mLatencyRecorder.reset();
+    }
+
+    /**
+     * Records one converted frame.  Called from the convert thread only.
+     *
+     * @param bytesWritten the size of the buffer handed to the detector
+     * @param bytesSaved   how many bytes smaller that buffer is than a full frame NV21 detection
+     *                     thumbnail (e.g. the skipped chroma in luma-only mode, or the area
+     *                     outside of a region of interest)
+     */
+    void recordConversion(int bytesWritten, int bytesSaved) {
+        mFramesConverted++;
+        mBytesConverted += bytesWritten;
+        mBytesSaved += bytesSaved;
+    }
+
+    /**
+     * Records a preview frame completed by the camera.
+     */
+    void recordProduced() {
+        mFramesProduced++;
+    }
+
+    /**
+     * Records a preview image acquired from the image reader.
+     */
+    void recordAcquired() {
+        mFramesAcquired++;
+    }
+
+    /**
+     * Records an image dropped by the full ring in front of the convert stage.
+     */
+    void recordConvertDrop() {
+        mConvertDropped++;
+    }
+
+    /**
+     * Records a converted frame dropped by the full ring in front of the detect stage.
+     */
+    void recordDetectDrop() {
+        mDetectDropped++;
+    }
+
+    /**
+     * Records a preview frame skipped without conversion to pace the detector.
+     */
+    void recordSkip() {
+        mFramesSkipped++;
+    }
+
+    /**
+     * Records a converted frame not detected because it did not change since the last detected
+     * one.
+     */
+    void recordUnchanged() {
+        mFramesUnchanged++;
+    }
+
+    /**
+     * Records a frame on which the face was followed by the template tracker instead of the
+     * detector.
+     */
+    void recordTracked() {
+        mFramesTracked++;
+    }
+
+    /**
+     * Records a frame on which the detector ran.
+     */
+    void recordDetected() {
+        mFramesDetected.incrementAndGet();
+    }
+
+    /**
+     * Records a frame left out of the recording because the recorder had fallen behind.
+     */
+    void recordRecordingDrop() {
+        mRecordingDropped++;
+    }
+
+    /**
+     * Records a frame abandoned while stopping, or lost to an exception while converting or
+     * detecting it.
+     */
+    void recordDiscard() {
+        mFramesDiscarded.incrementAndGet();
+    }
+
+    /**
+     * Records the result of a new frame drawn for the first time.
+     */
+    void recordRendered() {
+        mFramesRendered++;
+    }
+
+    public long getFramesProduced() {
+        return mFramesProduced;
+    }
+
+    public long getFramesAcquired() {
+        return mFramesAcquired;
+    }
+
+    /**
+     * Returns how many preview frames were produced by the camera but never reached the pipeline,
+     * because every image of the reader was still held by the pipeline.  A few frames in flight
+     * between the camera and the reader listener are counted too.
+     */
+    public long getFramesStalled() {
+        return Math.max(0, mFramesProduced - mFramesAcquired);
+    }
+
+    public long getFramesConverted() {
+        return mFramesConverted;
+    }
+
+    public long getBytesConverted() {
+        return mBytesConverted;
+    }
+
+    public long getBytesSaved() {
+        return mBytesSaved;
+    }
+
+    /**
+     * Returns how many images were dropped in front of the convert stage.
+     */
+    public long getConvertDropped() {
+        return mConvertDropped;
+    }
+
+    /**
+     * Returns how many converted frames were dropped in front of the detect stage.
+     */
+    public long getDetectDropped() {
+        return mDetectDropped;
+    }
+
+    /**
+     * Returns how many frames were dropped by either ring of the pipeline.
+     */
+    public long getFramesDropped() {
+        return mConvertDropped + mDetectDropped;
+    }
+
+    public long getFramesSkipped() {
+        return mFramesSkipped;
+    }
+
+    public long getFramesUnchanged() {
+        return mFramesUnchanged;
+    }
+
+    public long getFramesTracked() {
+        return mFramesTracked;
+    }
+
+    public long getFramesDetected() {
+        return mFramesDetected.get();
+    }
+
+    /**
+     * Returns how many frames were abandoned while stopping, or lost to an exception while
+     * converting or detecting them.
+     */
+    public long getFramesDiscarded() {
+        return mFramesDiscarded.get();
+    }
+
+    /**
+     * Returns how many frames were left out of the recording because the recorder had fallen
+     * behind.
+     */
+    public long getRecordingDropped() {
+        return mRecordingDropped;
+    }
+
+    /**
+     * Returns how many acquired frames are still in the pipeline: acquired but not yet skipped,
+     * dropped, found unchanged, tracked, detected or discarded.  Zero once the pipeline is
+     * stopped, give or take reads racing with the last updates.
+     */
+    public long getFramesInFlight() {
+        return mFramesAcquired - mFramesSkipped - mConvertDropped - mFramesUnchanged
+                - mDetectDropped - mFramesTracked - mFramesDetected.get() - mFramesDiscarded.get();
+    }
+
+    public long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /**
+     * Average number of bytes per frame not written thanks to the configured conversion.
+     */
+    public long getBytesSavedPerFrame() {
+        long frames = mFramesConverted;
+        return frames == 0 ? 0 : mBytesSaved / frames;
+    }
+
+    /**
+     * Returns the counters, the stage and latency percentiles (in microseconds) and the stage
+     * utilizations as a JSON object.
+     */
+    public String toJson() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"frames\":{\"produced\":").append(mFramesProduced)
+                .append(",\"stalled\":").append(getFramesStalled())
+                .append(",\"acquired\":").append(mFramesAcquired)
+                .append(",\"skipped\":").append(mFramesSkipped)
+                .append(",\"convertDropped\":").append(mConvertDropped)
+                .append(",\"converted\":").append(mFramesConverted)
+                .append(",\"unchanged\":").append(mFramesUnchanged)
+                .append(",\"detectDropped\":").append(mDetectDropped)
+                .append(",\"tracked\":").append(mFramesTracked)
+                .append(",\"detected\":").append(mFramesDetected.get())
+                .append(",\"discarded\":").append(mFramesDiscarded.get())
+                .append(",\"rendered\":").append(mFramesRendered)
+                .append(",\"recordingDropped\":").append(mRecordingDropped)
+                .append("},\"bytes\":{\"converted\":").append(mBytesConverted)
+                .append(",\"saved\":").append(mBytesSaved)
+                .append("},\"stages\":{");
+        for (int i = 0; i < STAGES; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(STAGE_NAMES[i]).append("\":");
+            appendHistogram(json, mStageHistograms[i].snapshot(snapshot));
+        }
+        json.append("},\"latency\":{");
+        for (int i = 0; i < LatencyRecorder.CHECKPOINTS; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('"').append(LatencyRecorder.CHECKPOINT_NAMES[i]).append("\":");
+            appendHistogram(json, mLatencyRecorder.getHistogram(i).snapshot(snapshot));
+        }
+        json.append('}');
+        StageStats[] stageStats = mStageStats;
+        if (stageStats != null) {
+            json.append(",\"utilization\":{");
+            for (int i = 0; i < stageStats.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(stageStats[i].getName()).append("\":")
+                        .append(stageStats[i].getUtilization());
+            }
+            json.append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram.Snapshot snapshot) {
+        json.append("{\"count\":").append(snapshot.getCount());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            json.append(",\"").append(PERCENTILE_NAMES[i]).append("\":")
+                    .append(snapshot.getPercentileMicros(PERCENTILES[i]));
+        }
+        json.append(",\"max\":").append(snapshot.getMaxMicros())
+                .append(",\"mean\":").append(snapshot.getMeanMicros())
+                .append('}');
+    }
+
+    /**
+     * Writes {@link #toJson} to a file, replacing its content.
+     */
+    public void writeJson(File file) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write(toJson());
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineMetrics{produced=" + mFramesProduced
+                + ", stalled=" + getFramesStalled()
+                + ", skipped=" + mFramesSkipped
+                + ", dropped=" + getFramesDropped()
+                + ", frames=" + mFramesConverted
+                + ", bytes=" + mBytesConverted
+                + ", bytesSaved=" + mBytesSaved
+                + ", unchanged=" + mFramesUnchanged
+                + ", tracked=" + mFramesTracked
+                + ", detected=" + mFramesDetected.get()
+                + ", discarded=" + mFramesDiscarded.get()
+                + ", rendered=" + mFramesRendered
+                + ", recordingDropped=" + mRecordingDropped + "}";
+    }
+}
@@ -0,0 +1,124 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Keeps the last trace events in memory, in a fixed ring of preallocated arrays, so that traces
+ * can be examined on the JVM or dumped after the fact without slowing the pipeline down.
+ * <p/>
+ * Once the ring is full, each new event overwrites the oldest one.  Events are indexed from 0, the
+ * oldest event still kept, to {@link #size()} - 1.  Section names are kept by reference and must
+ * not be built per call if recording is to stay allocation free.  Methods are thread safe.
+ */
+public class RingTracer implements Tracer {
+    public static final int BEGIN = 0;
+    public static final int END = 1;
+    public static final int INSTANT = 2;
+
+    private final String[] mNames;
+    private final int[] mTypes;
+    private final long[] mTimesNanos;
+    private final long[] mThreadIds;
+    private long mRecorded;
+
+    public RingTracer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        mNames = new String[capacity];
+        mTypes = new int[capacity];
+        mTimesNanos = new long[capacity];
+        mThreadIds = new long[capacity];
+    }
+
+    @Override
+    public void beginSection(String name) {
+        record(BEGIN, name);
+    }
+
+    @Override
+    public void endSection() {
+        record(END, null);
+    }
+
+    @Override
+    public void instant(String name) {
+        record(INSTANT, name);
+    }
+
+    private void record(int type, String name) {
+        long now = System.nanoTime();
+        long threadId = Thread.currentThread().getId();
+        synchronized (this) {
+            int index = (int) (mRecorded % mNames.length);
+            mNames[index] = name;
+            mTypes[index] = type;
+            mTimesNanos[index] = now;
+            mThreadIds[index] = threadId;
+            mRecorded++;
+        }
+    }
+
+    /**
+     * Returns the number of events kept.
+     */
+    public synchronized int size() {
+        return (int) Math.min(mRecorded, mNames.length);
+    }
+
+    /**
+     * Returns the number of events recorded since the last {@link #clear()}, including the ones
+     * overwritten since.
+     */
+    public synchronized long getRecordedCount() {
+        return mRecorded;
+    }
+
+    private int slot(int event) {
+        int size = size();
+        if (event < 0 || event >= size) {
+            throw new IndexOutOfBoundsException("Event " + event + " of " + size);
+        }
+        return (int) ((mRecorded - size + event) % mNames.length);
+    }
+
+    /**
+     * Returns the name of an event, or null for the end of a section.
+     */
+    public synchronized String getName(int event) {
+        return mNames[slot(event)];
+    }
+
+    /**
+     * Returns the type of an event: {@link #BEGIN}, {@link #END} or {@link #INSTANT}.
+     */
+    public synchronized int getType(int event) {
+        return mTypes[slot(event)];
+    }
+
+    public synchronized long getTimeNanos(int event) {
+        return mTimesNanos[slot(event)];
+    }
+
+    public synchronized long getThreadId(int event) {
+        return mThreadIds[slot(event)];
+    }
+
+    /**
+     * Returns how many of the kept events begin a section or mark an instant with the given name.
+     */
+    public synchronized int count(String name) {
+        int count = 0;
+        for (int i = 0, size = size(); i < size; i++) {
+            if (name.equals(mNames[slot(i)])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = null;
+        }
+        mRecorded = 0;
+    }
+}
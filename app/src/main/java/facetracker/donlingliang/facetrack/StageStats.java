@@ -0,0 +1,88 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Counters of one stage of the {@link Camera2Source} frame pipeline: how many items it processed,
+ * how long it was busy with them and how long it waited for input.
+ * <p/>
+ * A stage whose utilization stays close to 1 is saturated: it is the bottleneck, and the ring in
+ * front of it fills up and drops frames.  A stage that mostly waits is starved by the stages
+ * before it.  Counters are written by the stage's thread and may be read from any thread.
+ */
+public class StageStats {
+    private final String mName;
+    private final FrameRing<?> mInput;
+
+    private volatile long mProcessed;
+    private volatile long mBusyNanos;
+    private volatile long mWaitNanos;
+
+    /**
+     * @param input the ring the stage takes its items from, or null
+     */
+    StageStats(String name, FrameRing<?> input) {
+        mName = name;
+        mInput = input;
+    }
+
+    /**
+     * Records the time spent waiting for an item.
+     */
+    void recordWait(long nanos) {
+        mWaitNanos += nanos;
+    }
+
+    /**
+     * Records one processed item and the time spent on it.
+     */
+    void recordBusy(long nanos) {
+        mProcessed++;
+        mBusyNanos += nanos;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getProcessedCount() {
+        return mProcessed;
+    }
+
+    public long getBusyNanos() {
+        return mBusyNanos;
+    }
+
+    public long getWaitNanos() {
+        return mWaitNanos;
+    }
+
+    /**
+     * Returns the fraction of time the stage spent working rather than waiting for input.
+     */
+    public float getUtilization() {
+        long busy = mBusyNanos;
+        long total = busy + mWaitNanos;
+        return total == 0 ? 0f : (float) busy / total;
+    }
+
+    /**
+     * Returns the number of items dropped by the ring in front of the stage.
+     */
+    public long getDroppedCount() {
+        return mInput == null ? 0 : mInput.getDroppedCount();
+    }
+
+    /**
+     * Returns the largest number of items ever queued in front of the stage.
+     */
+    public int getQueueHighWater() {
+        return mInput == null ? 0 : mInput.getHighWater();
+    }
+
+    @Override
+    public String toString() {
+        return mName + "{processed=" + mProcessed
+                + ", utilization=" + getUtilization()
+                + ", dropped=" + getDroppedCount()
+                + ", highWater=" + getQueueHighWater() + "}";
+    }
+}
@@ -0,0 +1,37 @@
+package facetracker.donlingliang.facetrack;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Forwards trace points to {@link Trace}, so that they show up in systrace and Perfetto captures
+ * of the application (enable the app with {@code -a facetracker.donlingliang.facetrack}).
+ * <p/>
+ * Instants are recorded as empty sections, since atrace only knows about sections before API 29.
+ * On releases without {@link Trace} (before API 18) nothing is recorded.
+ */
+public class SystraceTracer implements Tracer {
+    // atrace truncates longer section names.
+    private static final int MAX_NAME_LENGTH = 127;
+
+    @Override
+    public void beginSection(String name) {
+        // Checked inline rather than cached, so that lint sees the guard around the API 18 calls.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    @Override
+    public void instant(String name) {
+        beginSection(name);
+        endSection();
+    }
+}
@@ -0,0 +1,27 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Receives the trace points of the camera pipeline and of the camera lifecycle.
+ * <p/>
+ * Sections nest and are always ended on the thread that began them, so they map directly onto
+ * systrace sections; see {@link SystraceTracer} for on-device profiling and {@link RingTracer} to
+ * examine traces from tests.  Tracers are installed with {@link Tracing#setTracer}.
+ * Implementations must be thread safe and must not block: they are called from the camera, the
+ * pipeline and the UI threads.
+ */
+public interface Tracer {
+    /**
+     * Begins a section on the calling thread.
+     */
+    void beginSection(String name);
+
+    /**
+     * Ends the innermost section begun on the calling thread.
+     */
+    void endSection();
+
+    /**
+     * Marks a point in time, e.g. a dropped frame.
+     */
+    void instant(String name);
+}
@@ -0,0 +1,46 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Entry point of the trace points of the pipeline, forwarding to the installed {@link Tracer}.
+ * <p/>
+ * No tracer is installed by default, in which case every call returns after a single volatile
+ * read.  A tracer installed or removed while a section is open may miss the end of that section.
+ */
+public final class Tracing {
+    private static volatile Tracer sTracer;
+
+    private Tracing() {
+    }
+
+    /**
+     * Installs the tracer receiving the trace points from now on, or null to disable tracing.
+     */
+    public static void setTracer(Tracer tracer) {
+        sTracer = tracer;
+    }
+
+    public static Tracer getTracer() {
+        return sTracer;
+    }
+
+    public static void beginSection(String name) {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.beginSection(name);
+        }
+    }
+
+    public static void endSection() {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.endSection();
+        }
+    }
+
+    public static void instant(String name) {
+        Tracer tracer = sTracer;
+        if (tracer != null) {
+            tracer.instant(name);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package facetracker.donlingliang.facetrack;
 
 import android.content.Context;
 import android.graphics.Point;
-import android.graphics.PointF;
 import android.util.DisplayMetrics;
 import android.view.Display;
 import android.view.WindowManager;
@@ -38,16 +37,6 @@ public class Utils {
         return wm.getDefaultDisplay().getRotation();
     }
 
-    public static int distancePointsF(PointF p1, PointF p2) {
-        return (int) Math.sqrt((p1.x - p2.x) * (p1.x - p2.x) + (p1.y - p2.y) * (p1.y - p2.y));
-    }
-
-    public static PointF middlePoint(PointF p1, PointF p2) {
-        if (p1 == null || p2 == null)
-            return null;
-        return new PointF((p1.x + p2.x) / 2, (p1.y + p2.y) / 2);
-    }
-
     public static Size[] sizeToSize(android.util.Size[] sizes) {
         Size[] size = new Size[sizes.length];
         for (int i = 0; i < sizes.length; i++) {
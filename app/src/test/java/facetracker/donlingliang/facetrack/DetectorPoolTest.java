@@ -0,0 +1,169 @@
+package facetracker.donlingliang.facetrack;
+
+import android.graphics.ImageFormat;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link DetectorPool} delivers results in dispatch order when its workers finish
+ * out of order, and that it can be stopped and restarted.
+ */
+public class DetectorPoolTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private final Map<Integer, CountDownLatch> mGates = new HashMap<>();
+    private final List<Integer> mDelivered = new ArrayList<>();
+    private final List<Integer> mDone = new ArrayList<>();
+
+    @Test
+    public void resultsAreDeliveredInDispatchOrder() throws InterruptedException {
+        CountDownLatch gate1 = gate(1);
+        CountDownLatch gate2 = gate(2);
+        CountDownLatch gate3 = gate(3);
+        DetectorPool<Integer> pool = newPool(2);
+        pool.start(new Recorder());
+
+        assertTrue(pool.dispatch(frame(1), 1));
+        assertTrue(pool.dispatch(frame(2), 2));
+        gate2.countDown();
+        // Waits for the worker of frame 2, which is idle again only after trying to deliver.
+        assertTrue(pool.dispatch(frame(3), 3));
+        synchronized (mDelivered) {
+            assertTrue(mDelivered.isEmpty());
+        }
+
+        gate3.countDown();
+        gate1.countDown();
+        awaitSize(mDelivered, 3);
+        pool.stop();
+        assertEquals(Arrays.asList(1, 2, 3), mDelivered);
+        assertEquals(3, mDone.size());
+    }
+
+    @Test
+    public void restartedPoolStartsFromAFreshSequence() throws InterruptedException {
+        DetectorPool<Integer> pool = newPool(2);
+        Recorder recorder = new Recorder();
+        pool.start(recorder);
+        assertTrue(pool.dispatch(frame(1), 1));
+        awaitSize(mDelivered, 1);
+        pool.stop();
+        assertFalse(pool.dispatch(frame(2), 2));
+
+        pool.start(recorder);
+        for (int id = 10; id < 30; id++) {
+            assertTrue(pool.dispatch(frame(id), id));
+        }
+        awaitSize(mDelivered, 21);
+        pool.stop();
+
+        List<Integer> expected = new ArrayList<>();
+        expected.add(1);
+        for (int id = 10; id < 30; id++) {
+            expected.add(id);
+        }
+        assertEquals(expected, mDelivered);
+        // Every dispatched frame was handed back exactly once; the rejected one never was.
+        assertEquals(21, mDone.size());
+        assertFalse(mDone.contains(2));
+    }
+
+    private DetectorPool<Integer> newPool(int workers) {
+        return new DetectorPool<>(new GatedDetector(), new DetectorPool.DetectorFactory<Integer>() {
+            @Override
+            public Detector<Integer> create() {
+                return new GatedDetector();
+            }
+        }, workers, new DetectorPool.ItemBounds<Integer>() {
+            @Override
+            public void get(Integer item, float[] out) {
+                // GatedDetector finds nothing.
+            }
+        }, new Detector.Processor<Integer>() {
+            @Override
+            public void release() {
+            }
+
+            @Override
+            public void receiveDetections(Detector.Detections<Integer> detections) {
+                synchronized (mDelivered) {
+                    mDelivered.add(detections.getFrameMetadata().getId());
+                }
+            }
+        });
+    }
+
+    private CountDownLatch gate(int id) {
+        CountDownLatch gate = new CountDownLatch(1);
+        synchronized (mGates) {
+            mGates.put(id, gate);
+        }
+        return gate;
+    }
+
+    private static Frame frame(int id) {
+        return new Frame.Builder()
+                .setImageData(ByteBuffer.allocate(16 * 16 * 3 / 2), 16, 16, ImageFormat.NV21)
+                .setId(id)
+                .build();
+    }
+
+    private static void awaitSize(List<Integer> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (list) {
+                if (list.size() >= size) {
+                    return;
+                }
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Detects nothing, once the gate of the frame, if any, is opened.
+     */
+    private class GatedDetector extends Detector<Integer> {
+        @Override
+        public SparseArray<Integer> detect(Frame frame) {
+            CountDownLatch gate;
+            synchronized (mGates) {
+                gate = mGates.get(frame.getMetadata().getId());
+            }
+            if (gate != null) {
+                try {
+                    gate.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new SparseArray<>(0);
+        }
+    }
+
+    private class Recorder implements DetectorPool.Callback<Integer> {
+        @Override
+        public void onFrameDone(Integer token, long latencyNanos) {
+            synchronized (mDone) {
+                mDone.add(token);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the size quantization of {@link EmojiBitmapCache} and the eviction of its variants.
+ * Bitmaps cannot be made off device, so the variant list holds plain objects here.
+ */
+public class EmojiBitmapCacheTest {
+
+    @Test
+    public void quantizesWithinOneStep() {
+        assertEquals(5, EmojiBitmapCache.quantize(5));
+        assertEquals(16, EmojiBitmapCache.quantize(16));
+        assertEquals(18, EmojiBitmapCache.quantize(17));
+        assertEquals(256, EmojiBitmapCache.quantize(241));
+        assertEquals(288, EmojiBitmapCache.quantize(257));
+        for (int size = 1; size < 5000; size++) {
+            int bucket = EmojiBitmapCache.quantize(size);
+            assertTrue(bucket >= size && bucket <= size + size / EmojiBitmapCache.SIZE_STEPS);
+            assertEquals(bucket, EmojiBitmapCache.quantize(bucket));
+        }
+    }
+
+    @Test
+    public void hitReturnsTheSameVariantForSizesInOneStep() {
+        EmojiBitmapCache.Variants<Object> variants = new EmojiBitmapCache.Variants<>(4, 1000);
+        Object variant = new Object();
+        assertTrue(variants.put(1, EmojiBitmapCache.quantize(250), EmojiBitmapCache.quantize(250),
+                variant, 100));
+        assertSame(variant, variants.get(1, EmojiBitmapCache.quantize(243),
+                EmojiBitmapCache.quantize(256)));
+        assertNull(variants.get(2, 256, 256));
+        assertNull(variants.get(1, 224, 256));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedWhenFull() {
+        EmojiBitmapCache.Variants<Object> variants = new EmojiBitmapCache.Variants<>(3, 1000);
+        Object first = new Object();
+        Object second = new Object();
+        Object third = new Object();
+        variants.put(1, 10, 10, first, 1);
+        variants.put(2, 10, 10, second, 1);
+        variants.put(3, 10, 10, third, 1);
+        // Using the first makes the second the least recently used.
+        assertSame(first, variants.get(1, 10, 10));
+
+        Object fourth = new Object();
+        variants.put(4, 10, 10, fourth, 1);
+        assertNull(variants.get(2, 10, 10));
+        assertSame(first, variants.get(1, 10, 10));
+        assertSame(third, variants.get(3, 10, 10));
+        assertSame(fourth, variants.get(4, 10, 10));
+        assertEquals(1, variants.getEvictionCount());
+        assertEquals(3, variants.getBytes());
+    }
+
+    @Test
+    public void staysWithinTheByteBudget() {
+        EmojiBitmapCache.Variants<Object> variants = new EmojiBitmapCache.Variants<>(16, 100);
+        Object first = new Object();
+        Object second = new Object();
+        variants.put(1, 10, 10, first, 40);
+        variants.put(2, 10, 10, second, 40);
+        assertSame(first, variants.get(1, 10, 10));
+
+        // Only room after evicting the second, now the least recently used.
+        Object third = new Object();
+        variants.put(3, 10, 10, third, 50);
+        assertNull(variants.get(2, 10, 10));
+        assertSame(first, variants.get(1, 10, 10));
+        assertSame(third, variants.get(3, 10, 10));
+        assertEquals(90, variants.getBytes());
+
+        // Larger than the whole budget: not kept, and nothing evicted for it.
+        assertFalse(variants.put(4, 10, 10, new Object(), 101));
+        assertEquals(90, variants.getBytes());
+        assertEquals(1, variants.getEvictionCount());
+
+        variants.clear();
+        assertEquals(0, variants.getBytes());
+        assertNull(variants.get(1, 10, 10));
+    }
+}
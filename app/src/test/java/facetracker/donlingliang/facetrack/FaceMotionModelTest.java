@@ -0,0 +1,48 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link FaceMotionModel} follows a face moving at constant speed.
+ */
+public class FaceMotionModelTest {
+    private static float[] state(float x) {
+        return new float[]{x, 50f, 20f, 20f, 0f, 0f};
+    }
+
+    @Test
+    public void extrapolatesConstantVelocity() {
+        FaceMotionModel model = new FaceMotionModel();
+        float[] out = new float[FaceMotionModel.DIMENSIONS];
+        assertFalse(model.predict(0, out));
+
+        // 0.1 px per millisecond, detected every 100 ms.
+        for (int i = 0; i <= 20; i++) {
+            model.update(i * 100, state(i * 10f));
+        }
+        assertTrue(model.predict(2050, out));
+        assertEquals(205f, out[FaceMotionModel.X], 1f);
+        assertEquals(50f, out[FaceMotionModel.Y], 0.01f);
+        assertTrue(model.isMoving(2050));
+
+        // Predictions stop at the horizon.
+        model.predict(5000, out);
+        assertEquals(200f + 0.1f * FaceMotionModel.MAX_PREDICTION_MILLIS, out[FaceMotionModel.X], 1f);
+        assertFalse(model.isMoving(5000));
+    }
+
+    @Test
+    public void restartsAfterLongGap() {
+        FaceMotionModel model = new FaceMotionModel();
+        float[] out = new float[FaceMotionModel.DIMENSIONS];
+        model.update(0, state(0f));
+        model.update(100, state(10f));
+        model.update(100 + FaceMotionModel.MAX_GAP_MILLIS + 1, state(300f));
+        model.predict(1000, out);
+        assertEquals(300f, out[FaceMotionModel.X], 0.01f);
+    }
+}
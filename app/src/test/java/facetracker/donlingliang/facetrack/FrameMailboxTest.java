@@ -0,0 +1,53 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks the latest-frame hand-off between the camera thread and the processing thread.
+ */
+public class FrameMailboxTest {
+    @Test
+    public void postReturnsDisplacedItem() {
+        FrameMailbox<String> mailbox = new FrameMailbox<>();
+        assertNull(mailbox.post("a"));
+        assertEquals("a", mailbox.post("b"));
+        assertEquals("b", mailbox.take());
+        assertNull(mailbox.poll());
+    }
+
+    @Test
+    public void closeWakesParkedConsumer() throws InterruptedException {
+        final FrameMailbox<String> mailbox = new FrameMailbox<>();
+        final String[] taken = new String[2];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                taken[0] = mailbox.take();
+                taken[1] = mailbox.take();
+            }
+        });
+        consumer.start();
+        mailbox.post("frame");
+        Thread.sleep(50);
+        mailbox.close();
+        consumer.join(2000);
+        assertEquals(Thread.State.TERMINATED, consumer.getState());
+        assertSame("frame", taken[0]);
+        assertNull(taken[1]);
+    }
+
+    @Test
+    public void freeStackRecyclesHolders() {
+        PendingFrame.Stack stack = new PendingFrame.Stack(1);
+        PendingFrame first = stack.pop();
+        PendingFrame second = stack.pop();
+        stack.push(first);
+        assertSame(first, stack.pop());
+        assertNotSame(first, second);
+    }
+}
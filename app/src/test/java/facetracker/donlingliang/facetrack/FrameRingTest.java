@@ -0,0 +1,65 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the drop policies and the ordering of {@link FrameRing}.
+ */
+public class FrameRingTest {
+    @Test
+    public void dropOldestKeepsMostRecentItems() {
+        FrameRing<Integer> ring = new FrameRing<>(2, FrameRing.DROP_OLDEST);
+        assertNull(ring.offer(1));
+        assertNull(ring.offer(2));
+        assertEquals(Integer.valueOf(1), ring.offer(3));
+        assertEquals(Integer.valueOf(2), ring.poll());
+        assertEquals(Integer.valueOf(3), ring.poll());
+        assertNull(ring.poll());
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(2, ring.getHighWater());
+    }
+
+    @Test
+    public void dropNewestRejectsOfferedItem() {
+        FrameRing<Integer> ring = new FrameRing<>(2, FrameRing.DROP_NEWEST);
+        ring.offer(1);
+        ring.offer(2);
+        assertEquals(Integer.valueOf(3), ring.offer(3));
+        assertEquals(Integer.valueOf(1), ring.take());
+        assertEquals(Integer.valueOf(2), ring.take());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void consumerSeesItemsInOrderAcrossWraparound() throws InterruptedException {
+        final FrameRing<Integer> ring = new FrameRing<>(3, FrameRing.DROP_NEWEST);
+        final int[] last = {-1};
+        final boolean[] ordered = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Integer item;
+                while ((item = ring.take()) != null) {
+                    ordered[0] &= item > last[0];
+                    last[0] = item;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < 10000; i++) {
+            ring.offer(i);
+        }
+        while (ring.size() > 0) {
+            Thread.yield();
+        }
+        ring.close();
+        consumer.join(2000);
+        assertEquals(Thread.State.TERMINATED, consumer.getState());
+        assertTrue(ordered[0]);
+        assertEquals(10000, ring.getOfferedCount());
+    }
+}
@@ -0,0 +1,60 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the running statistics and histograms of {@link LatencyRecorder}.
+ */
+public class LatencyRecorderTest {
+    private static final long MILLIS = 1000000;
+
+    @Test
+    public void recordsLatenciesPerCheckpoint() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.setHistogramsEnabled(true);
+        recorder.record(LatencyRecorder.CONVERTED, 100 * MILLIS, 110 * MILLIS);
+        recorder.record(LatencyRecorder.CONVERTED, 200 * MILLIS, 230 * MILLIS);
+        recorder.record(LatencyRecorder.DISPLAYED, 100 * MILLIS, 150 * MILLIS);
+
+        assertEquals(2, recorder.getCount(LatencyRecorder.CONVERTED));
+        assertEquals(20 * MILLIS, recorder.getMeanNanos(LatencyRecorder.CONVERTED));
+        assertEquals(30 * MILLIS, recorder.getMaxNanos(LatencyRecorder.CONVERTED));
+        assertEquals(30 * MILLIS, recorder.getLastNanos(LatencyRecorder.CONVERTED));
+        assertEquals(0, recorder.getCount(LatencyRecorder.DETECTED));
+        assertEquals(1, recorder.getCount(LatencyRecorder.DISPLAYED));
+
+        LatencyHistogram.Snapshot snapshot = recorder.getHistogram(LatencyRecorder.CONVERTED)
+                .snapshot(new LatencyHistogram.Snapshot());
+        assertEquals(2, snapshot.getCount());
+        // Buckets are within 1/8 of their value.
+        assertEquals(30000, snapshot.getMaxMicros(), 30000 / 8);
+        assertEquals(30000, snapshot.getPercentileMicros(0.99), 30000 / 8);
+
+        recorder.reset();
+        assertEquals(0, recorder.getCount(LatencyRecorder.CONVERTED));
+        assertEquals(0, recorder.getHistogram(LatencyRecorder.CONVERTED)
+                .snapshot(new LatencyHistogram.Snapshot()).getCount());
+    }
+
+    @Test
+    public void dropsNegativeLatencies() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.setHistogramsEnabled(true);
+        recorder.record(LatencyRecorder.DETECTED, 200 * MILLIS, 100 * MILLIS);
+        assertEquals(0, recorder.getCount(LatencyRecorder.DETECTED));
+        assertEquals(0, recorder.getMeanNanos(LatencyRecorder.DETECTED));
+        assertEquals(0, recorder.getHistogram(LatencyRecorder.DETECTED)
+                .snapshot(new LatencyHistogram.Snapshot()).getCount());
+    }
+
+    @Test
+    public void histogramsAreOffByDefault() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(LatencyRecorder.DETECTED, 0, 5 * MILLIS);
+        assertEquals(1, recorder.getCount(LatencyRecorder.DETECTED));
+        assertEquals(0, recorder.getHistogram(LatencyRecorder.DETECTED)
+                .snapshot(new LatencyHistogram.Snapshot()).getCount());
+    }
+}
@@ -0,0 +1,75 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link PipelineMetrics} counters the way the pipeline stages do and checks that
+ * every produced frame is accounted for.
+ */
+public class PipelineMetricsTest {
+    @Test
+    public void everyProducedFrameEndsUpInOnePlace() {
+        PipelineMetrics metrics = new PipelineMetrics();
+        // 12 frames produced, 2 of them never acquired because the reader was full.
+        for (int i = 0; i < 12; i++) {
+            metrics.recordProduced();
+        }
+        for (int i = 0; i < 10; i++) {
+            metrics.recordAcquired();
+        }
+        metrics.recordSkip();
+        metrics.recordConvertDrop();
+        for (int i = 0; i < 8; i++) {
+            metrics.recordConversion(100, 50);
+        }
+        metrics.recordUnchanged();
+        metrics.recordDetectDrop();
+        metrics.recordTracked();
+        metrics.recordDetected();
+        metrics.recordDetected();
+        assertEquals(3, metrics.getFramesInFlight());
+
+        // Stopping: one frame detected, one abandoned in a ring, one lost to an exception.
+        metrics.recordDetected();
+        metrics.recordDiscard();
+        metrics.recordDiscard();
+        assertEquals(0, metrics.getFramesInFlight());
+
+        assertEquals(2, metrics.getFramesStalled());
+        long accounted = metrics.getFramesStalled() + metrics.getFramesSkipped()
+                + metrics.getFramesDropped() + metrics.getFramesUnchanged()
+                + metrics.getFramesTracked() + metrics.getFramesDetected()
+                + metrics.getFramesDiscarded();
+        assertEquals(metrics.getFramesProduced(), accounted);
+        assertEquals(8, metrics.getFramesConverted());
+        assertEquals(50, metrics.getBytesSavedPerFrame());
+        assertTrue(metrics.toJson().contains("\"discarded\":2"));
+    }
+
+    @Test
+    public void sharedCountersDoNotLoseUpdates() throws InterruptedException {
+        final PipelineMetrics metrics = new PipelineMetrics();
+        final int perThread = 100000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        metrics.recordDetected();
+                        metrics.recordDiscard();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, metrics.getFramesDetected());
+        assertEquals(threads.length * perThread, metrics.getFramesDiscarded());
+    }
+}
@@ -0,0 +1,58 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the events kept by {@link RingTracer}, installed through {@link Tracing}.
+ */
+public class RingTracerTest {
+
+    @After
+    public void removeTracer() {
+        Tracing.setTracer(null);
+    }
+
+    @Test
+    public void recordsSectionsInOrder() {
+        RingTracer tracer = new RingTracer(8);
+        Tracing.setTracer(tracer);
+        Tracing.beginSection("outer");
+        Tracing.instant("drop");
+        Tracing.endSection();
+
+        assertEquals(3, tracer.size());
+        assertEquals(RingTracer.BEGIN, tracer.getType(0));
+        assertEquals("outer", tracer.getName(0));
+        assertEquals(RingTracer.INSTANT, tracer.getType(1));
+        assertEquals(RingTracer.END, tracer.getType(2));
+        assertNull(tracer.getName(2));
+        assertTrue(tracer.getTimeNanos(2) >= tracer.getTimeNanos(0));
+        assertEquals(Thread.currentThread().getId(), tracer.getThreadId(1));
+
+        Tracing.setTracer(null);
+        Tracing.instant("ignored");
+        assertEquals(3, tracer.size());
+    }
+
+    @Test
+    public void overwritesOldestEvents() {
+        RingTracer tracer = new RingTracer(4);
+        for (int i = 0; i < 6; i++) {
+            tracer.instant(i % 2 == 0 ? "even" : "odd");
+        }
+        assertEquals(4, tracer.size());
+        assertEquals(6, tracer.getRecordedCount());
+        // Events 2 to 5 are kept.
+        assertEquals("even", tracer.getName(0));
+        assertEquals("odd", tracer.getName(3));
+        assertEquals(2, tracer.count("even"));
+
+        tracer.clear();
+        assertEquals(0, tracer.size());
+    }
+}
@@ -0,0 +1,90 @@
+package facetracker.donlingliang.facetrack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the YUV_420_888 to NV21 conversion and downscaling kernels of
+ * {@link YuvConverter}, single threaded and striped through {@link ParallelYuvConverter}, for the
+ * usual preview resolutions and plane layouts.  Run with the gc profiler (the default of this
+ * module) to check that the kernels do not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({SyntheticFrames.PLANAR, SyntheticFrames.SEMI_PLANAR, SyntheticFrames.SEMI_PLANAR_PADDED})
+    public String layout;
+
+    @Param({"1", "2", "4"})
+    public int factor;
+
+    @Param({"nearest", "box"})
+    public String filter;
+
+    private YuvPlanes mPlanes;
+    private int mFilter;
+    private ByteBuffer mOut;
+    private byte[] mOutArray;
+    private ParallelYuvConverter mStriped;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticFrames.parseResolution(resolution);
+        mPlanes = SyntheticFrames.create(layout, size[0], size[1]);
+        mFilter = "box".equals(filter) ? YuvConverter.FILTER_BOX : YuvConverter.FILTER_NEAREST;
+        int outSize = YuvConverter.nv21Size(YuvConverter.outputWidth(mPlanes, factor),
+                YuvConverter.outputHeight(mPlanes, factor));
+        mOut = ByteBuffer.allocateDirect(outSize);
+        mOutArray = new byte[outSize];
+        mStriped = new ParallelYuvConverter(ParallelYuvConverter.bigCoreCount(), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStriped.shutdown();
+    }
+
+    @Benchmark
+    public ByteBuffer nv21Direct() {
+        YuvConverter.convertToNV21Scaled(mPlanes, factor, mFilter, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public byte[] nv21Array() {
+        YuvConverter.convertToNV21Scaled(mPlanes, factor, mFilter, mOutArray);
+        return mOutArray;
+    }
+
+    @Benchmark
+    public ByteBuffer lumaDirect() {
+        YuvConverter.convertLumaScaled(mPlanes, factor, mFilter, mOut);
+        return mOut;
+    }
+
+    @Benchmark
+    public ByteBuffer nv21Striped() {
+        mStriped.convertToNV21Scaled(mPlanes, factor, mFilter, mOut);
+        return mOut;
+    }
+}
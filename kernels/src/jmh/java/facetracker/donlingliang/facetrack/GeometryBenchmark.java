@@ -0,0 +1,76 @@
+package facetracker.donlingliang.facetrack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the per-frame geometry and analysis kernels run on detection frames: the
+ * {@link FrameRegion} coordinate mappings, the {@link MotionGate} difference and a
+ * {@link TemplateTracker} search.  Detection frames are the preview reduced by the detection
+ * scale, hence the smaller resolutions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeometryBenchmark {
+    @Param({"320x240", "640x360", "960x540"})
+    public String resolution;
+
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mLuma;
+    private ByteBuffer mNextLuma;
+    private final FrameRegion mRegion = new FrameRegion();
+    private final float[] mRect = new float[4];
+    private final float[] mOverlayRect = new float[4];
+    private MotionGate mMotionGate;
+    private TemplateTracker mTracker;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticFrames.parseResolution(resolution);
+        mWidth = size[0];
+        mHeight = size[1];
+        mLuma = SyntheticFrames.luma(mWidth, mHeight, 1);
+        mNextLuma = SyntheticFrames.luma(mWidth, mHeight, 2);
+        mRegion.set(mWidth / 4, mHeight / 4, mWidth / 2, mHeight / 2, 2, mWidth * 2, mHeight * 2, 4, 1);
+        // A threshold no frame reaches, so that every call compares the whole grid against the
+        // same reference.
+        mMotionGate = new MotionGate(255, Integer.MAX_VALUE);
+        mMotionGate.shouldDetect(mLuma, mWidth, mHeight, mRegion);
+        mTracker = new TemplateTracker();
+        mTracker.seed(mLuma, mWidth, mHeight, mWidth / 3f, mHeight / 3f, mWidth / 4f, mHeight / 4f);
+    }
+
+    @Benchmark
+    public float[] regionRoundTrip() {
+        mRegion.toPreviewRect(10f, 20f, 40f, 50f, mRect);
+        mRegion.previewToOverlay(mRect, mOverlayRect);
+        return mOverlayRect;
+    }
+
+    @Benchmark
+    public boolean motionGate() {
+        return mMotionGate.shouldDetect(mNextLuma, mWidth, mHeight, mRegion);
+    }
+
+    @Benchmark
+    public boolean templateTrack() {
+        return mTracker.track(mLuma, mWidth, mHeight);
+    }
+}
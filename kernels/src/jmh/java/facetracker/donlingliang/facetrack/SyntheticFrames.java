@@ -0,0 +1,75 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Builds YUV_420_888 frames of random content in the memory layouts camera HALs commonly produce.
+ */
+final class SyntheticFrames {
+    /**
+     * Three planes with tightly packed rows, as I420.
+     */
+    static final String PLANAR = "planar";
+    /**
+     * Interleaved chroma with tightly packed rows, as NV21.
+     */
+    static final String SEMI_PLANAR = "semiPlanar";
+    /**
+     * Interleaved chroma with rows padded to a multiple of 64 bytes plus 64, as many HALs align
+     * their buffers.
+     */
+    static final String SEMI_PLANAR_PADDED = "semiPlanarPadded";
+
+    private SyntheticFrames() {
+    }
+
+    /**
+     * Parses a resolution given as "WIDTHxHEIGHT".
+     */
+    static int[] parseResolution(String resolution) {
+        int x = resolution.indexOf('x');
+        return new int[]{Integer.parseInt(resolution.substring(0, x)), Integer.parseInt(resolution.substring(x + 1))};
+    }
+
+    static YuvPlanes create(String layout, int width, int height) {
+        Random random = new Random(width * 31 + height);
+        if (PLANAR.equals(layout)) {
+            ByteBuffer y = randomBuffer(random, width * height);
+            ByteBuffer u = randomBuffer(random, width * height / 4);
+            ByteBuffer v = randomBuffer(random, width * height / 4);
+            return new YuvPlanes().set(width, height, y, width, 1, u, v, width / 2, 1);
+        }
+        int rowStride;
+        if (SEMI_PLANAR.equals(layout)) {
+            rowStride = width;
+        } else if (SEMI_PLANAR_PADDED.equals(layout)) {
+            rowStride = ((width + 63) & ~63) + 64;
+        } else {
+            throw new IllegalArgumentException("Unknown layout: " + layout);
+        }
+        ByteBuffer y = randomBuffer(random, rowStride * height);
+        ByteBuffer chroma = randomBuffer(random, rowStride * height / 2);
+        chroma.position(1);
+        ByteBuffer u = chroma.slice();
+        chroma.position(0);
+        ByteBuffer v = chroma.slice();
+        return new YuvPlanes().set(width, height, y, rowStride, 1, u, v, rowStride, 2);
+    }
+
+    /**
+     * Returns the luma plane of a frame as a tightly packed buffer.
+     */
+    static ByteBuffer luma(int width, int height, long seed) {
+        return randomBuffer(new Random(seed), width * height);
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(content);
+        buffer.position(0);
+        return buffer;
+    }
+}
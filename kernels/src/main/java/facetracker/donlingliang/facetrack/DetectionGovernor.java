@@ -0,0 +1,176 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Paces the detector so that it does not run flat out on every preview frame.
+ * <p/>
+ * The governor keeps exponentially weighted averages of the interval between preview frames and
+ * of the time the detector spends on a frame.  From them it derives the minimum interval between
+ * two detections, so that neither the target rate nor the CPU budget is exceeded, and skips the
+ * frames that arrive in between before they are converted.  When the detector cannot keep up with
+ * the target even on every admitted frame, the detection thumbnail is made coarser, one power of
+ * two at a time, and made finer again once there is headroom.
+ * <p/>
+ * {@link #onFrameArrival} is called from the camera thread and {@link #onDetection} from the
+ * processing thread; no other synchronization is needed.
+ */
+public class DetectionGovernor {
+    /**
+     * Weight of the newest sample in the running averages.
+     */
+    static final float SMOOTHING = 0.2f;
+
+    /**
+     * Number of detections to observe after a scale change before changing it again.
+     */
+    static final int SETTLE_DETECTIONS = 10;
+
+    /**
+     * Coarsest thumbnail the governor falls back to, the camera source's
+     * {@code DETECTION_SCALE_EIGHTH}.
+     */
+    static final int MAX_SCALE = 8;
+
+    private final float mTargetIntervalNanos;
+    private final float mCpuBudget;
+
+    // Written by the camera thread.
+    private long mLastArrivalNanos = -1;
+    private long mNextDueNanos = -1;
+    private volatile float mArrivalIntervalNanos;
+
+    // Written by the processing thread.
+    private volatile float mLatencyNanos;
+    private volatile int mScale;
+    private int mMinScale;
+    private int mDetectionsSinceChange;
+
+    /**
+     * Creates a governor aiming at the given number of detections per second, on a whole core if
+     * needed.
+     */
+    public static DetectionGovernor forRate(float detectionsPerSecond) {
+        return new DetectionGovernor(detectionsPerSecond, 1f);
+    }
+
+    /**
+     * Creates a governor that runs the detector as often as possible while keeping it busy for at
+     * most the given fraction of the time.
+     */
+    public static DetectionGovernor forCpuBudget(float budget) {
+        return new DetectionGovernor(0f, budget);
+    }
+
+    /**
+     * @param detectionsPerSecond the target detection rate, or 0 for no limit
+     * @param cpuBudget           the fraction of time the detector may be busy, in (0, 1]
+     */
+    public DetectionGovernor(float detectionsPerSecond, float cpuBudget) {
+        if (detectionsPerSecond < 0f) {
+            throw new IllegalArgumentException("Invalid detection rate: " + detectionsPerSecond);
+        }
+        if (cpuBudget <= 0f || cpuBudget > 1f) {
+            throw new IllegalArgumentException("Invalid CPU budget: " + cpuBudget);
+        }
+        mTargetIntervalNanos = detectionsPerSecond == 0f ? 0f : 1e9f / detectionsPerSecond;
+        mCpuBudget = cpuBudget;
+        reset(1);
+    }
+
+    /**
+     * Starts over from the given detection scale, which is also the finest one the governor will
+     * use.
+     */
+    void reset(int baseScale) {
+        mMinScale = baseScale;
+        mScale = baseScale;
+        mLastArrivalNanos = -1;
+        mNextDueNanos = -1;
+        mArrivalIntervalNanos = 0f;
+        mLatencyNanos = 0f;
+        mDetectionsSinceChange = 0;
+    }
+
+    /**
+     * Records the arrival of a preview frame and returns whether it should be detected.
+     */
+    boolean onFrameArrival(long nowNanos) {
+        if (mLastArrivalNanos >= 0) {
+            mArrivalIntervalNanos = average(mArrivalIntervalNanos, nowNanos - mLastArrivalNanos);
+        }
+        mLastArrivalNanos = nowNanos;
+
+        // Detections are scheduled on their own grid, and frames arrive on the camera's.  Admit a
+        // frame that is at most half an arrival interval early rather than waiting for the next
+        // one; since the schedule advances from the due time rather than from the frame, early
+        // and late frames average out to the target interval.
+        long tolerance = (long) (mArrivalIntervalNanos / 2);
+        if (mNextDueNanos >= 0 && nowNanos < mNextDueNanos - tolerance) {
+            return false;
+        }
+        // After a pause, start a new schedule instead of catching up with a burst.
+        mNextDueNanos = Math.max(mNextDueNanos, nowNanos - tolerance) + getDetectionIntervalNanos();
+        return true;
+    }
+
+    /**
+     * Records the time the detector spent on an admitted frame, and adapts the detection scale.
+     */
+    void onDetection(long latencyNanos) {
+        mLatencyNanos = average(mLatencyNanos, latencyNanos);
+        if (++mDetectionsSinceChange < SETTLE_DETECTIONS) {
+            return;
+        }
+
+        float period = mTargetIntervalNanos > 0f ? mTargetIntervalNanos : mArrivalIntervalNanos;
+        float budget = period * mCpuBudget;
+        if (budget <= 0f) {
+            return;
+        }
+        // Each step halves or doubles both sides of the thumbnail, i.e. roughly divides or
+        // multiplies the detection time by four; keep a margin so the scale does not oscillate.
+        if (mLatencyNanos > budget && mScale < MAX_SCALE) {
+            changeScale(mScale * 2, 0.25f);
+        } else if (mLatencyNanos * 8f < budget && mScale > mMinScale) {
+            changeScale(mScale / 2, 4f);
+        }
+    }
+
+    private void changeScale(int scale, float latencyRatio) {
+        mScale = scale;
+        mLatencyNanos *= latencyRatio;
+        mDetectionsSinceChange = 0;
+    }
+
+    private static float average(float average, float sample) {
+        return average == 0f ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    /**
+     * Returns the minimum time between two detections, given the target rate, the CPU budget and
+     * the measured detector latency.
+     */
+    public long getDetectionIntervalNanos() {
+        return (long) Math.max(mTargetIntervalNanos, mLatencyNanos / mCpuBudget);
+    }
+
+    /**
+     * Returns the reduction currently applied to preview frames before detection.
+     */
+    public int getScale() {
+        return mScale;
+    }
+
+    /**
+     * Returns the smoothed time the detector spends on a frame.
+     */
+    public long getLatencyNanos() {
+        return (long) mLatencyNanos;
+    }
+
+    /**
+     * Returns the smoothed interval between preview frames.
+     */
+    public long getArrivalIntervalNanos() {
+        return (long) mArrivalIntervalNanos;
+    }
+}
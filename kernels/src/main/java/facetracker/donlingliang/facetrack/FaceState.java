@@ -0,0 +1,181 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Where a face is drawn and what it looks like, in primitive fields only, so that it can be
+ * updated on every draw without allocating.
+ * <p/>
+ * Landmarks are stored in a flat array indexed by landmark type (the {@code Landmark} constants of
+ * the vision API, 0 to {@link #LANDMARKS} - 1), with a bit per type telling whether the landmark
+ * was found.  The geometry helpers write their results into caller supplied arrays.  Not thread
+ * safe.
+ */
+public final class FaceState {
+    public static final int LANDMARKS = 12;
+
+    /**
+     * Value of a probability that was not computed.
+     */
+    public static final float UNKNOWN = -1f;
+
+    /**
+     * Top left corner and size of the face.
+     */
+    public float x;
+    public float y;
+    public float width;
+    public float height;
+
+    /**
+     * Point the emoji is centered on.
+     */
+    public float centerX;
+    public float centerY;
+
+    public float eulerY;
+    public float eulerZ;
+
+    public float smilingProbability = UNKNOWN;
+    public float leftEyeOpenProbability = UNKNOWN;
+    public float rightEyeOpenProbability = UNKNOWN;
+
+    private final float[] mLandmarks = new float[2 * LANDMARKS];
+    private int mPresent;
+
+    /**
+     * Forgets the landmarks and the probabilities, keeping the position.
+     */
+    public void clear() {
+        mPresent = 0;
+        smilingProbability = UNKNOWN;
+        leftEyeOpenProbability = UNKNOWN;
+        rightEyeOpenProbability = UNKNOWN;
+    }
+
+    /**
+     * Sets the position and size of the face and the point the emoji is centered on.
+     */
+    public void setBounds(float x, float y, float width, float height,
+                          float centerX, float centerY) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.centerX = centerX;
+        this.centerY = centerY;
+    }
+
+    public void setAngles(float eulerY, float eulerZ) {
+        this.eulerY = eulerY;
+        this.eulerZ = eulerZ;
+    }
+
+    public void setProbabilities(float smiling, float leftEyeOpen, float rightEyeOpen) {
+        smilingProbability = smiling;
+        leftEyeOpenProbability = leftEyeOpen;
+        rightEyeOpenProbability = rightEyeOpen;
+    }
+
+    /**
+     * Forgets the landmarks only, before they are set again for a new frame.
+     */
+    public void clearLandmarks() {
+        mPresent = 0;
+    }
+
+    /**
+     * Sets the position of a landmark.  Types outside of [0, {@link #LANDMARKS}) are ignored, so
+     * landmarks introduced by later versions of the vision API do no harm.
+     */
+    public void setLandmark(int type, float x, float y) {
+        if (type < 0 || type >= LANDMARKS) {
+            return;
+        }
+        mLandmarks[2 * type] = x;
+        mLandmarks[2 * type + 1] = y;
+        mPresent |= 1 << type;
+    }
+
+    public boolean hasLandmark(int type) {
+        return type >= 0 && type < LANDMARKS && (mPresent & (1 << type)) != 0;
+    }
+
+    /**
+     * Returns the bit mask of the landmarks found: bit {@code type} is set for each of them.
+     */
+    public int getLandmarkMask() {
+        return mPresent;
+    }
+
+    /**
+     * Returns the x coordinate of a landmark; only meaningful if {@link #hasLandmark} is true.
+     */
+    public float getLandmarkX(int type) {
+        return mLandmarks[2 * type];
+    }
+
+    /**
+     * Returns the y coordinate of a landmark; only meaningful if {@link #hasLandmark} is true.
+     */
+    public float getLandmarkY(int type) {
+        return mLandmarks[2 * type + 1];
+    }
+
+    /**
+     * Returns the distance between two landmarks, or -1 if either of them was not found.
+     */
+    public float landmarkDistance(int first, int second) {
+        if (!hasLandmark(first) || !hasLandmark(second)) {
+            return -1f;
+        }
+        return distance(mLandmarks[2 * first], mLandmarks[2 * first + 1],
+                mLandmarks[2 * second], mLandmarks[2 * second + 1]);
+    }
+
+    /**
+     * Writes the point halfway between two landmarks to {@code out[0]} and {@code out[1]}.
+     *
+     * @return false, leaving {@code out} untouched, if either landmark was not found
+     */
+    public boolean landmarkMidpoint(int first, int second, float[] out) {
+        if (!hasLandmark(first) || !hasLandmark(second)) {
+            return false;
+        }
+        midpoint(mLandmarks[2 * first], mLandmarks[2 * first + 1],
+                mLandmarks[2 * second], mLandmarks[2 * second + 1], out);
+        return true;
+    }
+
+    /**
+     * Copies the whole state of {@code other}.
+     */
+    public FaceState set(FaceState other) {
+        x = other.x;
+        y = other.y;
+        width = other.width;
+        height = other.height;
+        centerX = other.centerX;
+        centerY = other.centerY;
+        eulerY = other.eulerY;
+        eulerZ = other.eulerZ;
+        smilingProbability = other.smilingProbability;
+        leftEyeOpenProbability = other.leftEyeOpenProbability;
+        rightEyeOpenProbability = other.rightEyeOpenProbability;
+        System.arraycopy(other.mLandmarks, 0, mLandmarks, 0, mLandmarks.length);
+        mPresent = other.mPresent;
+        return this;
+    }
+
+    public static float distance(float x1, float y1, float x2, float y2) {
+        float dx = x1 - x2;
+        float dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Writes the point halfway between two points to {@code out[0]} and {@code out[1]}.
+     */
+    public static void midpoint(float x1, float y1, float x2, float y2, float[] out) {
+        out[0] = (x1 + x2) / 2;
+        out[1] = (y1 + y2) / 2;
+    }
+}
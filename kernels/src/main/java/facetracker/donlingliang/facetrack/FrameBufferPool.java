@@ -0,0 +1,152 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small pool of direct byte buffers grouped into size classes, used to recycle frame buffers
+ * instead of allocating a new one for every preview frame.  Direct buffers are filled straight
+ * from the camera planes and read by the detector's native code without a copy on the Java heap.
+ * <p/>
+ * Requested sizes are rounded up to a size class (a power of two, or 1.25, 1.5 or 1.75 times one),
+ * so buffers may be up to 25% larger than asked for; this lets frames whose size varies slightly
+ * (e.g. region of interest crops) share buffers.  The pipeline only uses a handful of classes, so
+ * they are kept in a short fixed table and looked up linearly.  Acquiring and releasing never
+ * allocate once the pool is warm.  All methods are thread safe.
+ */
+public final class FrameBufferPool {
+    private final Object mLock = new Object();
+
+    // mSizes[i] is the buffer capacity held by class i, or 0 if the slot is unused.
+    private final int[] mSizes;
+    private final ByteBuffer[][] mFree;
+    private final int[] mFreeCounts;
+
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxSizeClasses the number of distinct buffer capacities retained
+     * @param maxPerClass    the number of free buffers retained per capacity
+     */
+    public FrameBufferPool(int maxSizeClasses, int maxPerClass) {
+        if (maxSizeClasses <= 0 || maxPerClass <= 0) {
+            throw new IllegalArgumentException("Pool dimensions must be positive.");
+        }
+        mSizes = new int[maxSizeClasses];
+        mFree = new ByteBuffer[maxSizeClasses][maxPerClass];
+        mFreeCounts = new int[maxSizeClasses];
+    }
+
+    /**
+     * Returns the capacity of the buffers handed out for a request of {@code size} bytes.
+     */
+    public static int sizeClass(int size) {
+        if (size <= 4) {
+            return Math.max(size, 0);
+        }
+        int power = Integer.highestOneBit(size);
+        if (size == power) {
+            return size;
+        }
+        int quarter = power >> 2;
+        return power + quarter * ((size - power + quarter - 1) / quarter);
+    }
+
+    /**
+     * Returns a direct buffer of at least {@code size} bytes (a capacity of exactly
+     * {@link #sizeClass(int)}), reusing a released one when possible.  The buffer is cleared, i.e.
+     * its position is 0 and its limit its capacity; the contents of a recycled buffer are
+     * undefined.
+     */
+    public ByteBuffer acquire(int size) {
+        size = sizeClass(size);
+        synchronized (mLock) {
+            int sizeClass = findClass(size);
+            if (sizeClass >= 0 && mFreeCounts[sizeClass] > 0) {
+                int index = --mFreeCounts[sizeClass];
+                ByteBuffer buffer = mFree[sizeClass][index];
+                mFree[sizeClass][index] = null;
+                mHits++;
+                buffer.clear();
+                return buffer;
+            }
+            mMisses++;
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Hands a buffer back to the pool.  Buffers that do not fit (unknown size with every class in
+     * use, or a full class) are left to the garbage collector.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (mLock) {
+            int sizeClass = findClass(buffer.capacity());
+            if (sizeClass < 0) {
+                sizeClass = claimClass(buffer.capacity());
+                if (sizeClass < 0) {
+                    return;
+                }
+            }
+            if (mFreeCounts[sizeClass] < mFree[sizeClass].length) {
+                mFree[sizeClass][mFreeCounts[sizeClass]++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * Drops every retained buffer.
+     */
+    public void clear() {
+        synchronized (mLock) {
+            for (int i = 0; i < mSizes.length; i++) {
+                for (int j = 0; j < mFreeCounts[i]; j++) {
+                    mFree[i][j] = null;
+                }
+                mFreeCounts[i] = 0;
+                mSizes[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Number of {@link #acquire} calls served from the pool.
+     */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHits;
+        }
+    }
+
+    /**
+     * Number of {@link #acquire} calls that had to allocate.
+     */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMisses;
+        }
+    }
+
+    private int findClass(int size) {
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int claimClass(int size) {
+        for (int i = 0; i < mSizes.length; i++) {
+            if (mSizes[i] == 0 || mFreeCounts[i] == 0) {
+                // An empty class can be repurposed; this lets the pool follow preview size changes.
+                mSizes[i] = size;
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,104 @@
+package facetracker.donlingliang.facetrack;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays back a recording written by {@link FrameRecorder}, one frame at a time.
+ * <p/>
+ * Frames are read into direct buffers reused from frame to frame (reallocated only when the frame
+ * size grows), so {@link #getPlanes()} is only valid until the next call to {@link #next()}.  Not
+ * thread safe.
+ */
+public class FrameReader implements Closeable {
+    private final DataInputStream mIn;
+    private final YuvPlanes mPlanes = new YuvPlanes();
+    private byte[] mRow = new byte[0];
+    private ByteBuffer mY;
+    private ByteBuffer mU;
+    private ByteBuffer mV;
+    private long mTimestampNanos;
+
+    /**
+     * Reads the header of a recording from {@code in}, which is closed with the reader.
+     *
+     * @throws IOException if {@code in} does not start with a recording header of a known version
+     */
+    public FrameReader(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        int magic = mIn.readInt();
+        int version = mIn.readInt();
+        if (magic != FrameRecorder.MAGIC) {
+            throw new IOException("Not a frame recording");
+        }
+        if (version != FrameRecorder.VERSION) {
+            throw new IOException("Unsupported recording version: " + version);
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return false at the end of the recording
+     * @throws EOFException if the recording ends within a frame
+     */
+    public boolean next() throws IOException {
+        long timestampNanos;
+        try {
+            timestampNanos = mIn.readLong();
+        } catch (EOFException e) {
+            return false;
+        }
+        int width = mIn.readInt();
+        int height = mIn.readInt();
+        if (width <= 0 || height <= 0) {
+            throw new IOException("Invalid frame size: " + width + "x" + height);
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        mY = readPlane(mY, width, height);
+        mU = readPlane(mU, chromaWidth, chromaHeight);
+        mV = readPlane(mV, chromaWidth, chromaHeight);
+        mTimestampNanos = timestampNanos;
+        mPlanes.set(width, height, mY, width, 1, mU, mV, chromaWidth, 1);
+        return true;
+    }
+
+    private ByteBuffer readPlane(ByteBuffer plane, int width, int height) throws IOException {
+        int size = width * height;
+        if (plane == null || plane.capacity() < size) {
+            plane = ByteBuffer.allocateDirect(size);
+        }
+        if (mRow.length < width) {
+            mRow = new byte[width];
+        }
+        plane.clear();
+        for (int r = 0; r < height; r++) {
+            mIn.readFully(mRow, 0, width);
+            plane.put(mRow, 0, width);
+        }
+        plane.position(0);
+        return plane;
+    }
+
+    /**
+     * Returns the current frame, as tightly packed planar YUV.
+     */
+    public YuvPlanes getPlanes() {
+        return mPlanes;
+    }
+
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,193 @@
+package facetracker.donlingliang.facetrack;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes preview frames and their capture timestamps to a recording that {@link FrameReader} can
+ * play back, on the device or on the JVM.
+ * <p/>
+ * A recording is a header followed by frames, up to the end of the stream:
+ * <pre>
+ * header: int MAGIC, int VERSION
+ * frame:  long timestampNanos, int width, int height,
+ *         byte[width * height] Y, byte[cw * ch] U, byte[cw * ch] V
+ * </pre>
+ * where {@code cw} and {@code ch} are half the width and height rounded up.  Integers are big
+ * endian.  Planes are written without padding and one sample per byte (I420), whatever the
+ * strides of the source, so recordings from different devices have the same layout and replay
+ * the conversion of planar frames.
+ * <p/>
+ * Writing is synchronous and buffered; a full frame is roughly 1.5 bytes per pixel, so recording
+ * slows down the thread it is called from.  To record from a thread that must not wait for the
+ * disk, {@link #pack} the frame into a buffer there and hand it to another thread, which writes it
+ * with {@link #writePackedFrame}.  Not thread safe.
+ */
+public class FrameRecorder implements Closeable {
+    static final int MAGIC = 0x4654524B; // "FTRK"
+    static final int VERSION = 1;
+
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    private final DataOutputStream mOut;
+    private byte[] mRow = new byte[0];
+    private byte[] mChunk;
+    private int mFrameCount;
+
+    /**
+     * Writes the header of a new recording to {@code out}, which is closed with the recorder.
+     */
+    public FrameRecorder(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+    }
+
+    /**
+     * Appends a frame.  Requires planes with chroma; buffer positions are restored afterwards.
+     *
+     * @param timestampNanos the capture time of the frame
+     */
+    public void writeFrame(YuvPlanes planes, long timestampNanos) throws IOException {
+        if (planes.u == null) {
+            throw new IllegalArgumentException("Cannot record a luma only frame");
+        }
+        int width = planes.width;
+        int height = planes.height;
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        if (mRow.length < width) {
+            mRow = new byte[width];
+        }
+        mOut.writeLong(timestampNanos);
+        mOut.writeInt(width);
+        mOut.writeInt(height);
+        writePlane(planes.y, planes.yOffset, planes.yRowStride, planes.yPixelStride, width, height);
+        writePlane(planes.u, planes.uOffset, planes.uvRowStride, planes.uvPixelStride, chromaWidth, chromaHeight);
+        writePlane(planes.v, planes.vOffset, planes.uvRowStride, planes.uvPixelStride, chromaWidth, chromaHeight);
+        mFrameCount++;
+    }
+
+    /**
+     * Returns the size of a frame packed by {@link #pack}.
+     */
+    public static int packedSize(int width, int height) {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    /**
+     * Copies the planes of a frame into {@code out}, from index 0, in the layout of a recorded
+     * frame, for {@link #writePackedFrame}.  Requires planes with chroma and {@code out} of at
+     * least {@link #packedSize} bytes.  The positions of the planes are restored afterwards; that
+     * of {@code out} is not meaningful.
+     */
+    public static void pack(YuvPlanes planes, ByteBuffer out) {
+        if (planes.u == null) {
+            throw new IllegalArgumentException("Cannot record a luma only frame");
+        }
+        int width = planes.width;
+        int height = planes.height;
+        if (out.capacity() < packedSize(width, height)) {
+            throw new IllegalArgumentException("Buffer too small: " + out.capacity());
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int o = packPlane(planes.y, planes.yOffset, planes.yRowStride, planes.yPixelStride,
+                width, height, out, 0);
+        o = packPlane(planes.u, planes.uOffset, planes.uvRowStride, planes.uvPixelStride,
+                chromaWidth, chromaHeight, out, o);
+        packPlane(planes.v, planes.vOffset, planes.uvRowStride, planes.uvPixelStride,
+                chromaWidth, chromaHeight, out, o);
+    }
+
+    private static int packPlane(ByteBuffer plane, int offset, int rowStride, int pixelStride,
+                                 int width, int height, ByteBuffer out, int o) {
+        if (pixelStride == 1) {
+            // Packed rows: copy each one in bulk.
+            int position = plane.position();
+            int limit = plane.limit();
+            for (int r = 0; r < height; r++) {
+                int base = offset + r * rowStride;
+                plane.limit(base + width);
+                plane.position(base);
+                out.position(o);
+                out.put(plane);
+                plane.limit(limit);
+                o += width;
+            }
+            plane.position(position);
+            return o;
+        }
+        for (int r = 0; r < height; r++) {
+            int base = offset + r * rowStride;
+            for (int c = 0; c < width; c++) {
+                out.put(o++, plane.get(base + c * pixelStride));
+            }
+        }
+        return o;
+    }
+
+    /**
+     * Appends a frame packed by {@link #pack}.  The position of {@code packed} is not meaningful
+     * afterwards.
+     *
+     * @param timestampNanos the capture time of the frame
+     */
+    public void writePackedFrame(ByteBuffer packed, int width, int height, long timestampNanos)
+            throws IOException {
+        int size = packedSize(width, height);
+        if (mChunk == null) {
+            mChunk = new byte[CHUNK_SIZE];
+        }
+        mOut.writeLong(timestampNanos);
+        mOut.writeInt(width);
+        mOut.writeInt(height);
+        packed.position(0);
+        for (int done = 0; done < size; done += CHUNK_SIZE) {
+            int length = Math.min(CHUNK_SIZE, size - done);
+            packed.get(mChunk, 0, length);
+            mOut.write(mChunk, 0, length);
+        }
+        mFrameCount++;
+    }
+
+    private void writePlane(ByteBuffer plane, int offset, int rowStride, int pixelStride,
+                            int width, int height) throws IOException {
+        byte[] row = mRow;
+        if (pixelStride == 1) {
+            // Packed rows: copy each one in bulk rather than byte by byte.
+            int position = plane.position();
+            for (int r = 0; r < height; r++) {
+                plane.position(offset + r * rowStride);
+                plane.get(row, 0, width);
+                mOut.write(row, 0, width);
+            }
+            plane.position(position);
+            return;
+        }
+        for (int r = 0; r < height; r++) {
+            int base = offset + r * rowStride;
+            for (int c = 0; c < width; c++) {
+                row[c] = plane.get(base + c * pixelStride);
+            }
+            mOut.write(row, 0, width);
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
@@ -0,0 +1,210 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Describes which part of a preview frame was handed to the detector and at which reduction, so
+ * that detection coordinates can be mapped back to the overlay's coordinate system.
+ * <p/>
+ * The window is expressed in preview pixels in sensor orientation.  The overlay works in the
+ * rotated (upright) full preview reduced by the reference detection scale; {@link #mapX},
+ * {@link #mapY} and {@link #mapSize} convert a point of the rotated detector frame into that space.
+ * Rotations are multiples of 90 degrees, so each axis maps independently.
+ */
+public final class FrameRegion {
+    int left;
+    int top;
+    int width;
+    int height;
+    int factor;
+
+    int previewWidth;
+    int previewHeight;
+    int referenceScale;
+    int rotation;
+
+    private float mOffsetX;
+    private float mOffsetY;
+    private float mScale = 1f;
+
+    /**
+     * Sets a region covering the whole preview at the reference scale, i.e. the identity mapping.
+     *
+     * @param rotation quarter turns clockwise applied by the detector (as Frame.ROTATION_*)
+     */
+    public FrameRegion setFullFrame(int previewWidth, int previewHeight, int referenceScale, int rotation) {
+        return set(0, 0, previewWidth, previewHeight, referenceScale,
+                previewWidth, previewHeight, referenceScale, rotation);
+    }
+
+    /**
+     * Sets the window, in preview pixels, and the factor it is reduced by before detection.
+     *
+     * @param rotation quarter turns clockwise applied by the detector (as Frame.ROTATION_*)
+     */
+    public FrameRegion set(int left, int top, int width, int height, int factor,
+                           int previewWidth, int previewHeight, int referenceScale, int rotation) {
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.factor = factor;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.referenceScale = referenceScale;
+        this.rotation = rotation & 3;
+        update();
+        return this;
+    }
+
+    public FrameRegion set(FrameRegion other) {
+        return set(other.left, other.top, other.width, other.height, other.factor,
+                other.previewWidth, other.previewHeight, other.referenceScale, other.rotation);
+    }
+
+    private void update() {
+        float s = referenceScale;
+        mScale = (float) factor / s;
+        switch (rotation) {
+            case 1:
+                mOffsetX = (previewHeight - top - height) / s;
+                mOffsetY = left / s;
+                break;
+            case 2:
+                mOffsetX = (previewWidth - left - width) / s;
+                mOffsetY = (previewHeight - top - height) / s;
+                break;
+            case 3:
+                mOffsetX = top / s;
+                mOffsetY = (previewWidth - left - width) / s;
+                break;
+            default:
+                mOffsetX = left / s;
+                mOffsetY = top / s;
+                break;
+        }
+    }
+
+    /**
+     * Returns true if both regions cover the same window of the preview at the same reduction
+     * and rotation, i.e. if their detection frames are pixel aligned.
+     */
+    public boolean sameWindow(FrameRegion other) {
+        return left == other.left && top == other.top && width == other.width
+                && height == other.height && factor == other.factor && rotation == other.rotation;
+    }
+
+    /**
+     * Returns true if the window covers the whole preview at the reference scale.
+     */
+    public boolean isFullFrame() {
+        return left == 0 && top == 0 && width == previewWidth && height == previewHeight
+                && factor == referenceScale;
+    }
+
+    /**
+     * Maps an x coordinate of the rotated detector frame to the overlay's coordinate system.
+     */
+    public float mapX(float x) {
+        return mOffsetX + x * mScale;
+    }
+
+    /**
+     * Maps a y coordinate of the rotated detector frame to the overlay's coordinate system.
+     */
+    public float mapY(float y) {
+        return mOffsetY + y * mScale;
+    }
+
+    /**
+     * Maps a length of the detector frame to the overlay's coordinate system.
+     */
+    public float mapSize(float size) {
+        return size * mScale;
+    }
+
+    /**
+     * Converts a rectangle of the rotated detector frame into preview pixels in sensor orientation.
+     *
+     * @param out receives left, top, right and bottom
+     */
+    public void toPreviewRect(float x, float y, float w, float h, float[] out) {
+        float s = referenceScale;
+        float x0 = mapX(x) * s;
+        float y0 = mapY(y) * s;
+        float x1 = mapX(x + w) * s;
+        float y1 = mapY(y + h) * s;
+        switch (rotation) {
+            case 1:
+                setRect(out, y0, previewHeight - x1, y1, previewHeight - x0);
+                break;
+            case 2:
+                setRect(out, previewWidth - x1, previewHeight - y1, previewWidth - x0, previewHeight - y0);
+                break;
+            case 3:
+                setRect(out, previewWidth - y1, x0, previewWidth - y0, x1);
+                break;
+            default:
+                setRect(out, x0, y0, x1, y1);
+                break;
+        }
+    }
+
+    /**
+     * Converts a rectangle in preview pixels, sensor orientation, into the overlay's coordinate
+     * system; the inverse of {@link #toPreviewRect} followed by {@link #mapX} and {@link #mapY}.
+     *
+     * @param rect left, top, right and bottom in preview pixels
+     * @param out  receives x, y, width and height in the overlay's coordinate system
+     */
+    public void previewToOverlay(float[] rect, float[] out) {
+        float l = rect[0];
+        float t = rect[1];
+        float r = rect[2];
+        float b = rect[3];
+        switch (rotation) {
+            case 1:
+                setRect(out, previewHeight - b, l, previewHeight - t, r);
+                break;
+            case 2:
+                setRect(out, previewWidth - r, previewHeight - b, previewWidth - l, previewHeight - t);
+                break;
+            case 3:
+                setRect(out, t, previewWidth - r, b, previewWidth - l);
+                break;
+            default:
+                setRect(out, l, t, r, b);
+                break;
+        }
+        float s = referenceScale;
+        out[2] = (out[2] - out[0]) / s;
+        out[3] = (out[3] - out[1]) / s;
+        out[0] /= s;
+        out[1] /= s;
+    }
+
+    private static void setRect(float[] out, float left, float top, float right, float bottom) {
+        out[0] = left;
+        out[1] = top;
+        out[2] = right;
+        out[3] = bottom;
+    }
+
+    public int getLeft() {
+        return left;
+    }
+
+    public int getTop() {
+        return top;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+}
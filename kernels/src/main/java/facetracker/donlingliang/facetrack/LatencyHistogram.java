@@ -0,0 +1,125 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Fixed-bucket histogram of durations, with log-linear buckets: every power of two of
+ * microseconds is split into {@link #SUB_BUCKETS} equal buckets, so percentiles are reported
+ * within 1/8 (12.5%) of the true value from 1 microsecond up to more than a minute.
+ * <p/>
+ * Recording is a handful of integer operations on a preallocated array and never allocates.
+ * Percentiles are read from a {@link Snapshot}, which copies the buckets so that a consistent view
+ * can be examined while recording goes on.  Methods are thread safe.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = 27 * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mTotalMicros;
+    private long mMaxMicros;
+
+    /**
+     * Records a duration.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = bucketOf(micros);
+        synchronized (this) {
+            mCounts[bucket]++;
+            mCount++;
+            mTotalMicros += micros;
+            if (micros > mMaxMicros) {
+                mMaxMicros = micros;
+            }
+        }
+    }
+
+    /**
+     * Copies the current state into {@code out}.
+     */
+    public synchronized Snapshot snapshot(Snapshot out) {
+        System.arraycopy(mCounts, 0, out.mCounts, 0, BUCKETS);
+        out.mCount = mCount;
+        out.mTotalMicros = mTotalMicros;
+        out.mMaxMicros = mMaxMicros;
+        return out;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mTotalMicros = 0;
+        mMaxMicros = 0;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int bucket = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * Returns the smallest value, in microseconds, falling into the given bucket.
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * A copy of the buckets of a histogram at some point in time.  Reuse instances to avoid
+     * allocating.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts = new long[BUCKETS];
+        private long mCount;
+        private long mTotalMicros;
+        private long mMaxMicros;
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMaxMicros() {
+            return mMaxMicros;
+        }
+
+        public long getMeanMicros() {
+            return mCount == 0 ? 0 : mTotalMicros / mCount;
+        }
+
+        /**
+         * Returns the value, in microseconds, below which the given fraction of the recorded
+         * durations fall: the upper bound of the bucket holding that percentile, capped by the
+         * maximum.
+         *
+         * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+         */
+        public long getPercentileMicros(double fraction) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * mCount);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : mMaxMicros;
+                    return Math.min(upper, mMaxMicros);
+                }
+            }
+            return mMaxMicros;
+        }
+    }
+}
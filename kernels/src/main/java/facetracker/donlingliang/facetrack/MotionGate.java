@@ -0,0 +1,110 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Skips detection on frames that did not change since the last detected one.
+ * <p/>
+ * Each detection frame is reduced to a tiny luma thumbnail of {@link #GRID_WIDTH} x
+ * {@link #GRID_HEIGHT} samples, which is compared with the thumbnail of the last frame let
+ * through.  If the mean absolute difference stays below the threshold the frame is skipped, and
+ * the previous detection result stands.  A frame is let through anyway after
+ * {@code refreshInterval} consecutive skips, and whenever the frame covers another region of the
+ * preview than the reference.
+ * <p/>
+ * Not thread safe; used from the convert thread only.
+ */
+public class MotionGate {
+    static final int GRID_WIDTH = 32;
+    static final int GRID_HEIGHT = 24;
+
+    private final int mThreshold;
+    private final int mRefreshInterval;
+
+    private final byte[] mReference = new byte[GRID_WIDTH * GRID_HEIGHT];
+    private final FrameRegion mReferenceRegion = new FrameRegion();
+    private boolean mHasReference;
+    private int mSkipped;
+
+    /**
+     * @param threshold       mean absolute luma difference, per sample, below which a frame is
+     *                        considered unchanged
+     * @param refreshInterval the maximum number of consecutive frames skipped
+     */
+    public MotionGate(int threshold, int refreshInterval) {
+        if (threshold < 0 || threshold > 255) {
+            throw new IllegalArgumentException("Invalid motion threshold: " + threshold);
+        }
+        if (refreshInterval < 1) {
+            throw new IllegalArgumentException("Invalid refresh interval: " + refreshInterval);
+        }
+        mThreshold = threshold;
+        mRefreshInterval = refreshInterval;
+    }
+
+    /**
+     * Returns whether the given detection frame should be detected.  If so it becomes the
+     * reference for the following frames.
+     *
+     * @param luma   the detection buffer; its first {@code width * height} bytes are the luma plane
+     * @param region the region of the preview the frame was converted from
+     */
+    public boolean shouldDetect(ByteBuffer luma, int width, int height, FrameRegion region) {
+        boolean sameRegion = mHasReference && region.sameWindow(mReferenceRegion);
+        if (sameRegion && mSkipped < mRefreshInterval
+                && !differs(luma, width, height, mThreshold * mReference.length)) {
+            mSkipped++;
+            return false;
+        }
+        sample(luma, width, height, mReference);
+        mReferenceRegion.set(region);
+        mHasReference = true;
+        mSkipped = 0;
+        return true;
+    }
+
+    /**
+     * Forgets the reference frame; the next frame is detected.
+     */
+    public void reset() {
+        mHasReference = false;
+        mSkipped = 0;
+    }
+
+    /**
+     * Returns true as soon as the sum of absolute differences with the reference exceeds
+     * {@code limit}.
+     */
+    private boolean differs(ByteBuffer luma, int width, int height, int limit) {
+        int sum = 0;
+        int i = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            int row = sampleCoordinate(gy, GRID_HEIGHT, height) * width;
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                int value = luma.get(row + sampleCoordinate(gx, GRID_WIDTH, width)) & 0xFF;
+                sum += Math.abs(value - (mReference[i++] & 0xFF));
+            }
+            if (sum > limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void sample(ByteBuffer luma, int width, int height, byte[] out) {
+        int i = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            int row = sampleCoordinate(gy, GRID_HEIGHT, height) * width;
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                out[i++] = luma.get(row + sampleCoordinate(gx, GRID_WIDTH, width));
+            }
+        }
+    }
+
+    /**
+     * Centre of the {@code index}-th of {@code count} cells spanning {@code size} pixels.
+     */
+    private static int sampleCoordinate(int index, int count, int size) {
+        return (int) (((2L * index + 1) * size) / (2 * count));
+    }
+}
@@ -0,0 +1,124 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Gives detected items ids that hold across frames, whichever detector instance found them: an
+ * item takes over the id of the item of the previous frame it overlaps most, if any overlaps by
+ * at least {@link #MIN_OVERLAP} (intersection over union), and gets a new id otherwise.  Each
+ * item of the previous frame is taken over at most once.
+ * <p/>
+ * Items are passed frame by frame, between {@link #beginFrame()} and {@link #endFrame()}, as
+ * boxes of left, top, width and height.  Does not allocate once the arrays fit the largest frame.
+ * Not thread safe.
+ */
+public class OverlapIdAssigner {
+    /**
+     * The least intersection over union for an item to keep the id of one in the previous frame.
+     */
+    public static final float MIN_OVERLAP = 0.3f;
+
+    // Ids and boxes (4 floats each) of the previous frame, and of the frame being assigned.
+    private int[] mPreviousIds = new int[4];
+    private float[] mPreviousBoxes = new float[16];
+    private boolean[] mTaken = new boolean[4];
+    private int mPreviousCount;
+    private int[] mCurrentIds = new int[4];
+    private float[] mCurrentBoxes = new float[16];
+    private int mCurrentCount;
+    private int mNextId;
+
+    /**
+     * Starts the items of a new frame.
+     */
+    public void beginFrame() {
+        mCurrentCount = 0;
+        for (int j = 0; j < mPreviousCount; j++) {
+            mTaken[j] = false;
+        }
+    }
+
+    /**
+     * Returns the id of an item of the current frame.
+     */
+    public int assign(float left, float top, float width, float height) {
+        int best = -1;
+        float bestOverlap = MIN_OVERLAP;
+        for (int j = 0; j < mPreviousCount; j++) {
+            if (mTaken[j]) {
+                continue;
+            }
+            float overlap = overlap(left, top, width, height, mPreviousBoxes, 4 * j);
+            if (overlap >= bestOverlap) {
+                best = j;
+                bestOverlap = overlap;
+            }
+        }
+        int id;
+        if (best >= 0) {
+            mTaken[best] = true;
+            id = mPreviousIds[best];
+        } else {
+            id = mNextId++;
+        }
+        if (mCurrentCount == mCurrentIds.length) {
+            int[] ids = new int[2 * mCurrentCount];
+            System.arraycopy(mCurrentIds, 0, ids, 0, mCurrentCount);
+            mCurrentIds = ids;
+            float[] boxes = new float[8 * mCurrentCount];
+            System.arraycopy(mCurrentBoxes, 0, boxes, 0, 4 * mCurrentCount);
+            mCurrentBoxes = boxes;
+        }
+        mCurrentIds[mCurrentCount] = id;
+        int offset = 4 * mCurrentCount++;
+        mCurrentBoxes[offset] = left;
+        mCurrentBoxes[offset + 1] = top;
+        mCurrentBoxes[offset + 2] = width;
+        mCurrentBoxes[offset + 3] = height;
+        return id;
+    }
+
+    /**
+     * Ends the current frame, whose items the next frame is matched against.
+     */
+    public void endFrame() {
+        int[] ids = mPreviousIds;
+        mPreviousIds = mCurrentIds;
+        mCurrentIds = ids;
+        float[] boxes = mPreviousBoxes;
+        mPreviousBoxes = mCurrentBoxes;
+        mCurrentBoxes = boxes;
+        mPreviousCount = mCurrentCount;
+        mCurrentCount = 0;
+        if (mTaken.length < mPreviousIds.length) {
+            mTaken = new boolean[mPreviousIds.length];
+        }
+    }
+
+    /**
+     * Forgets the previous frame, e.g. when a new session starts.  Ids keep increasing.
+     */
+    public void reset() {
+        mPreviousCount = 0;
+        mCurrentCount = 0;
+    }
+
+    /**
+     * Returns the intersection over union of a box and the box at {@code offset} in
+     * {@code boxes}, both as left, top, width and height.
+     */
+    static float overlap(float left, float top, float width, float height, float[] boxes,
+                         int offset) {
+        float otherLeft = boxes[offset];
+        float otherTop = boxes[offset + 1];
+        float otherWidth = boxes[offset + 2];
+        float otherHeight = boxes[offset + 3];
+        float overlapWidth = Math.min(left + width, otherLeft + otherWidth)
+                - Math.max(left, otherLeft);
+        float overlapHeight = Math.min(top + height, otherTop + otherHeight)
+                - Math.max(top, otherTop);
+        if (overlapWidth <= 0 || overlapHeight <= 0) {
+            return 0f;
+        }
+        float intersection = overlapWidth * overlapHeight;
+        return intersection / (width * height + otherWidth * otherHeight - intersection);
+    }
+}
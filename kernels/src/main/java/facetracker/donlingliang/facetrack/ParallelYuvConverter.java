@@ -0,0 +1,218 @@
+package facetracker.donlingliang.facetrack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the {@link YuvConverter} kernels over horizontal stripes of the output on a small
+ * {@link ForkJoinPool}, for analysis streams large enough that a single core becomes the
+ * bottleneck.
+ * <p/>
+ * Frames whose output has fewer than {@code thresholdPixels} pixels are converted on the calling
+ * thread, since splitting them costs more than it saves (see the conversion benchmark for the
+ * crossover point).  The calling thread always converts the first stripe itself.  Stripe tasks are
+ * allocated once and reused.  Scaled conversions only use absolute buffer indices, so every stripe
+ * shares the caller's buffers; unscaled ones bulk copy rows, which moves buffer positions, so
+ * each stripe reads and writes through views of its own, kept while the caller passes the same
+ * buffers again (as pooled output buffers are).
+ * <p/>
+ * Conversions must not be issued concurrently on the same instance.
+ */
+public class ParallelYuvConverter {
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+    private final int mThresholdPixels;
+    private final StripeTask[] mTasks;
+
+    /**
+     * @param parallelism     the number of stripes, including the one run on the calling thread
+     * @param thresholdPixels the output size below which conversion stays single threaded
+     */
+    public ParallelYuvConverter(int parallelism, int thresholdPixels) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        mParallelism = parallelism;
+        mThresholdPixels = thresholdPixels;
+        mPool = parallelism > 1 ? new ForkJoinPool(parallelism - 1) : null;
+        mTasks = new StripeTask[parallelism];
+        for (int i = 1; i < parallelism; i++) {
+            mTasks[i] = new StripeTask();
+        }
+    }
+
+    /**
+     * Parallel equivalent of {@link YuvConverter#convertToNV21Scaled(YuvPlanes, int, int, ByteBuffer)}.
+     */
+    public void convertToNV21Scaled(YuvPlanes planes, int factor, int filter, ByteBuffer out) {
+        YuvConverter.checkArguments(planes, factor, filter, true, out);
+        convert(planes, factor, filter, true, out);
+    }
+
+    /**
+     * Parallel equivalent of {@link YuvConverter#convertLumaScaled(YuvPlanes, int, int, ByteBuffer)}.
+     */
+    public void convertLumaScaled(YuvPlanes planes, int factor, int filter, ByteBuffer out) {
+        YuvConverter.checkArguments(planes, factor, filter, false, out);
+        convert(planes, factor, filter, false, out);
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Stops the worker threads.  The instance must not be used afterwards.
+     */
+    public void shutdown() {
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    private void convert(YuvPlanes planes, int factor, int filter, boolean chroma, ByteBuffer out) {
+        int outWidth = YuvConverter.outputWidth(planes, factor);
+        int outHeight = YuvConverter.outputHeight(planes, factor);
+        int stripes = Math.min(mParallelism, outHeight / 2);
+        if (mPool == null || stripes < 2 || (long) outWidth * outHeight < mThresholdPixels) {
+            YuvConverter.convertRows(planes, factor, filter, chroma, out, 0, outHeight);
+            return;
+        }
+
+        // Stripes hold a whole number of row pairs so that chroma rows are never split.
+        int pairs = outHeight / 2;
+        int firstEnd = 2 * (pairs / stripes);
+        for (int i = 1; i < stripes; i++) {
+            int start = 2 * (pairs * i / stripes);
+            int end = i == stripes - 1 ? outHeight : 2 * (pairs * (i + 1) / stripes);
+            StripeTask task = mTasks[i];
+            task.reinitialize();
+            task.prepare(planes, factor, filter, chroma, out, start, end);
+            mPool.execute(task);
+        }
+        try {
+            YuvConverter.convertRows(planes, factor, filter, chroma, out, 0, firstEnd);
+        } finally {
+            // Even if this stripe failed, no other stripe may still be writing once we return.
+            for (int i = 1; i < stripes; i++) {
+                mTasks[i].quietlyJoin();
+                mTasks[i].release();
+            }
+        }
+        for (int i = 1; i < stripes; i++) {
+            // Rethrows the failure of a stripe, if any.
+            mTasks[i].join();
+        }
+    }
+
+    /**
+     * Returns the number of cores running at the highest maximum frequency, i.e. the big cores of
+     * a big.LITTLE system, or half of the available processors if that cannot be determined.
+     */
+    public static int bigCoreCount() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        long highest = 0;
+        int count = 0;
+        for (int cpu = 0; cpu < cpus; cpu++) {
+            long frequency = readMaxFrequency(cpu);
+            if (frequency <= 0) {
+                return Math.max(1, cpus / 2);
+            }
+            if (frequency > highest) {
+                highest = frequency;
+                count = 1;
+            } else if (frequency == highest) {
+                count++;
+            }
+        }
+        return Math.max(1, count);
+    }
+
+    private static long readMaxFrequency(int cpu) {
+        File file = new File(CPU_DIR + "/cpu" + cpu + "/cpufreq/cpuinfo_max_freq");
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line = reader.readLine();
+            return line == null ? -1 : Long.parseLong(line.trim());
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    // Never serialized.
+    @SuppressWarnings("serial")
+    private static class StripeTask extends RecursiveAction {
+        private static final int Y = 0;
+        private static final int U = 1;
+        private static final int V = 2;
+        private static final int OUT = 3;
+
+        private final YuvPlanes mPlanes = new YuvPlanes();
+        // Buffers last passed by the caller, and this stripe's views of them.
+        private final ByteBuffer[] mSources = new ByteBuffer[4];
+        private final ByteBuffer[] mViews = new ByteBuffer[4];
+        private int mFactor;
+        private int mFilter;
+        private boolean mChroma;
+        private ByteBuffer mOut;
+        private int mRowStart;
+        private int mRowEnd;
+
+        void prepare(YuvPlanes planes, int factor, int filter, boolean chroma, ByteBuffer out, int rowStart, int rowEnd) {
+            if (factor == 1) {
+                // Bulk copies move buffer positions, so the stripe needs views of its own.
+                mPlanes.setViewOf(planes, view(Y, planes.y), view(U, planes.u), view(V, planes.v));
+                mOut = view(OUT, out);
+            } else {
+                mPlanes.setViewOf(planes, planes.y, planes.u, planes.v);
+                mOut = out;
+            }
+            mFactor = factor;
+            mFilter = filter;
+            mChroma = chroma;
+            mRowStart = rowStart;
+            mRowEnd = rowEnd;
+        }
+
+        private ByteBuffer view(int slot, ByteBuffer source) {
+            if (source == null) {
+                return null;
+            }
+            ByteBuffer view = mViews[slot];
+            if (mSources[slot] != source) {
+                mSources[slot] = source;
+                view = mViews[slot] = source.duplicate();
+            } else {
+                view.limit(source.limit());
+                view.position(source.position());
+            }
+            return view;
+        }
+
+        void release() {
+            mPlanes.clear();
+            mOut = null;
+        }
+
+        @Override
+        protected void compute() {
+            YuvConverter.convertRows(mPlanes, mFactor, mFilter, mChroma, mOut, mRowStart, mRowEnd);
+        }
+    }
+}
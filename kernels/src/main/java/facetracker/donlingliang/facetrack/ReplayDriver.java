@@ -0,0 +1,401 @@
+package facetracker.donlingliang.facetrack;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds a frame recording through the stages of the camera pipeline on the JVM, as fast as they
+ * go, and reports how many frames each stage handled and how long it took.
+ * <p/>
+ * Every frame goes through the same steps as on the device, in a single thread: if enabled, the
+ * {@link DetectionGovernor} schedules detections against the recorded capture times, admitted
+ * frames are converted to NV21 at the detection scale, the {@link MotionGate} drops unchanged
+ * frames, and the rest is either followed by the {@link TemplateTracker} or handed to a
+ * {@link Detector}.  The device's face detector is not available off device, so the default
+ * detector is a stub that burns a fixed amount of CPU and finds a face in the middle of the frame.
+ * <p/>
+ * Besides the time spent in each stage, the report has the latency from the capture of a frame
+ * to its result, as if the frames had arrived at their recorded capture times: a frame starts
+ * once it was captured and the previous one is done, so a pipeline slower than the camera shows
+ * a growing backlog rather than the drops the device would make.
+ * <p/>
+ * Run from Gradle with {@code ./gradlew :kernels:replay -Precording=FILE}, optionally adding
+ * options, e.g. {@code -PreplayArgs="detectMillis=30 scale=2"}; see {@link #main}.
+ */
+public class ReplayDriver {
+    /**
+     * Finds the face in a detection frame.
+     */
+    public interface Detector {
+        /**
+         * @param face receives the x, y, width and height of the face, in frame pixels
+         * @return false if no face was found
+         */
+        boolean detect(ByteBuffer nv21, int width, int height, float[] face);
+    }
+
+    /**
+     * Stands in for the face detector: keeps the CPU busy for a fixed time, then reports a face
+     * covering the middle quarter of the frame.
+     */
+    public static class StubDetector implements Detector {
+        private final long mCostNanos;
+        // Keeps the frame reads from being optimized away.
+        private int mChecksum;
+
+        public StubDetector(long costNanos) {
+            mCostNanos = costNanos;
+        }
+
+        @Override
+        public boolean detect(ByteBuffer nv21, int width, int height, float[] face) {
+            long end = System.nanoTime() + mCostNanos;
+            int size = width * height;
+            int index = 0;
+            do {
+                // Read the frame, as a detector would.
+                mChecksum += nv21.get(index);
+                index = (index + 64) % size;
+            } while (System.nanoTime() < end);
+            face[0] = width / 4f;
+            face[1] = height / 4f;
+            face[2] = width / 2f;
+            face[3] = height / 2f;
+            return true;
+        }
+    }
+
+    public static final int STAGE_CONVERT = 0;
+    public static final int STAGE_GATE = 1;
+    public static final int STAGE_DETECT = 2;
+    public static final int STAGE_TRACK = 3;
+    /**
+     * Whole processing of an admitted frame, from the start of its conversion to its result.
+     */
+    public static final int STAGE_FRAME = 4;
+    /**
+     * From the capture time of a frame to its result, on the simulated camera clock.
+     */
+    public static final int STAGE_LATENCY = 5;
+    public static final int STAGES = 6;
+
+    private static final String[] STAGE_NAMES =
+            {"convert", "gate", "detect", "track", "frame", "latency"};
+
+    private int mScale = 4;
+    private int mFilter = YuvConverter.FILTER_BOX;
+    private float mDetectionsPerSecond = 0f;
+    private int mMotionThreshold = 3;
+    private int mMotionRefreshInterval = 10;
+    private int mTrackDetectionInterval = 3;
+    private Detector mDetector = new StubDetector(15000000L);
+
+    /**
+     * Sets the reduction of the detection frames.  Default: 4.
+     */
+    public ReplayDriver setScale(int scale) {
+        if (scale < 1) {
+            throw new IllegalArgumentException("Invalid scale: " + scale);
+        }
+        mScale = scale;
+        return this;
+    }
+
+    /**
+     * Sets the downscale filter, {@link YuvConverter#FILTER_NEAREST} or
+     * {@link YuvConverter#FILTER_BOX}.  Default: box.
+     */
+    public ReplayDriver setFilter(int filter) {
+        if (filter != YuvConverter.FILTER_NEAREST && filter != YuvConverter.FILTER_BOX) {
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+        mFilter = filter;
+        return this;
+    }
+
+    /**
+     * Sets the detection rate of the governor, or 0 to detect every frame.  Recordings hold every
+     * frame the camera produced, before the device's governor, so replaying them through a
+     * governor again is opt-in.  Default: 0.
+     */
+    public ReplayDriver setDetectionsPerSecond(float detectionsPerSecond) {
+        mDetectionsPerSecond = detectionsPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the motion gate threshold, or 0 to detect unchanged frames too.  Default: 3.
+     */
+    public ReplayDriver setMotionGate(int threshold, int refreshInterval) {
+        mMotionThreshold = threshold;
+        mMotionRefreshInterval = refreshInterval;
+        return this;
+    }
+
+    /**
+     * Sets the detection interval: one frame out of every {@code interval} is detected and the
+     * other {@code interval - 1} are tracked, as long as tracking succeeds.  1 detects every
+     * frame.  Default: 3.
+     */
+    public ReplayDriver setTrackDetectionInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Invalid detection interval: " + interval);
+        }
+        mTrackDetectionInterval = interval;
+        return this;
+    }
+
+    public ReplayDriver setDetector(Detector detector) {
+        mDetector = detector;
+        return this;
+    }
+
+    /**
+     * Plays the whole recording through the pipeline.
+     */
+    public Report run(FrameReader reader) throws IOException {
+        DetectionGovernor governor = mDetectionsPerSecond > 0f
+                ? DetectionGovernor.forRate(mDetectionsPerSecond) : null;
+        if (governor != null) {
+            governor.reset(mScale);
+        }
+        MotionGate motionGate = mMotionThreshold > 0
+                ? new MotionGate(mMotionThreshold, mMotionRefreshInterval) : null;
+        TemplateTracker tracker = mTrackDetectionInterval > 1 ? new TemplateTracker() : null;
+        FrameBufferPool pool = new FrameBufferPool(2, 1);
+        FrameRegion region = new FrameRegion();
+        float[] face = new float[4];
+        Report report = new Report();
+        int framesSinceDetection = 0;
+
+        long firstTimestamp = -1;
+        long lastTimestamp = 0;
+        // When the previous frame is done, on the clock of the recorded capture times.
+        long busyUntil = Long.MIN_VALUE;
+        long startNanos = System.nanoTime();
+        while (reader.next()) {
+            YuvPlanes planes = reader.getPlanes();
+            long timestamp = reader.getTimestampNanos();
+            if (firstTimestamp < 0) {
+                firstTimestamp = timestamp;
+            }
+            lastTimestamp = timestamp;
+            report.mFrames++;
+            if (governor != null && !governor.onFrameArrival(timestamp)) {
+                report.mSkipped++;
+                continue;
+            }
+
+            int scale = governor != null ? governor.getScale() : mScale;
+            int previewWidth = planes.getWidth();
+            int previewHeight = planes.getHeight();
+            region.set(0, 0, previewWidth, previewHeight, scale, previewWidth, previewHeight, mScale, 0);
+            int width = YuvConverter.scaledDimension(previewWidth, scale);
+            int height = YuvConverter.scaledDimension(previewHeight, scale);
+
+            long frameStart = System.nanoTime();
+            long simulatedStart = Math.max(timestamp, busyUntil);
+            ByteBuffer data = pool.acquire(YuvConverter.nv21Size(width, height));
+            YuvConverter.convertToNV21Scaled(planes, scale, mFilter, data);
+            long now = System.nanoTime();
+            report.mHistograms[STAGE_CONVERT].record(now - frameStart);
+
+            long stageStart = now;
+            boolean changed = motionGate == null || motionGate.shouldDetect(data, width, height, region);
+            now = System.nanoTime();
+            report.mHistograms[STAGE_GATE].record(now - stageStart);
+            if (!changed) {
+                busyUntil = simulatedStart + now - frameStart;
+                report.mUnchanged++;
+                pool.release(data);
+                continue;
+            }
+
+            stageStart = now;
+            if (tracker != null && framesSinceDetection + 1 < mTrackDetectionInterval
+                    && tracker.hasTemplate() && tracker.track(data, width, height)) {
+                framesSinceDetection++;
+                now = System.nanoTime();
+                report.mHistograms[STAGE_TRACK].record(now - stageStart);
+                report.mTracked++;
+            } else {
+                if (tracker != null) {
+                    tracker.clear();
+                }
+                boolean found = mDetector.detect(data, width, height, face);
+                now = System.nanoTime();
+                report.mHistograms[STAGE_DETECT].record(now - stageStart);
+                report.mDetected++;
+                if (governor != null) {
+                    governor.onDetection(now - stageStart);
+                }
+                framesSinceDetection = 0;
+                if (found && tracker != null) {
+                    tracker.seed(data, width, height, face[0], face[1], face[2], face[3]);
+                }
+            }
+            report.mHistograms[STAGE_FRAME].record(now - frameStart);
+            busyUntil = simulatedStart + now - frameStart;
+            report.mHistograms[STAGE_LATENCY].record(busyUntil - timestamp);
+            pool.release(data);
+        }
+        report.mWallNanos = System.nanoTime() - startNanos;
+        report.mRecordedNanos = firstTimestamp < 0 ? 0 : lastTimestamp - firstTimestamp;
+        return report;
+    }
+
+    /**
+     * What a replay went through: frame counts, per-stage durations and overall throughput.
+     */
+    public static class Report {
+        private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES];
+        private long mFrames;
+        private long mSkipped;
+        private long mUnchanged;
+        private long mTracked;
+        private long mDetected;
+        private long mWallNanos;
+        private long mRecordedNanos;
+
+        Report() {
+            for (int i = 0; i < STAGES; i++) {
+                mHistograms[i] = new LatencyHistogram();
+            }
+        }
+
+        public long getFrames() {
+            return mFrames;
+        }
+
+        public long getSkipped() {
+            return mSkipped;
+        }
+
+        public long getUnchanged() {
+            return mUnchanged;
+        }
+
+        public long getTracked() {
+            return mTracked;
+        }
+
+        public long getDetected() {
+            return mDetected;
+        }
+
+        /**
+         * Returns the durations recorded for a stage, one of the STAGE_* constants.
+         */
+        public LatencyHistogram getHistogram(int stage) {
+            return mHistograms[stage];
+        }
+
+        /**
+         * Returns the number of recorded frames played per second of processing.
+         */
+        public double getFramesPerSecond() {
+            return mWallNanos == 0 ? 0 : mFrames * 1e9 / mWallNanos;
+        }
+
+        /**
+         * Returns how many times faster than real time the recording was played; below 1, the
+         * pipeline could not have kept up with the camera on this machine.
+         */
+        public double getRealTimeFactor() {
+            return mWallNanos == 0 ? 0 : (double) mRecordedNanos / mWallNanos;
+        }
+
+        public String toJson() {
+            LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+            StringBuilder json = new StringBuilder(512);
+            json.append("{\"frames\":").append(mFrames)
+                    .append(",\"skipped\":").append(mSkipped)
+                    .append(",\"unchanged\":").append(mUnchanged)
+                    .append(",\"tracked\":").append(mTracked)
+                    .append(",\"detected\":").append(mDetected)
+                    .append(",\"wallMillis\":").append(mWallNanos / 1000000)
+                    .append(",\"recordedMillis\":").append(mRecordedNanos / 1000000)
+                    .append(",\"framesPerSecond\":").append(getFramesPerSecond())
+                    .append(",\"realTimeFactor\":").append(getRealTimeFactor())
+                    .append(",\"stages\":{");
+            for (int i = 0; i < STAGES; i++) {
+                mHistograms[i].snapshot(snapshot);
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(STAGE_NAMES[i]).append("\":{\"count\":").append(snapshot.getCount())
+                        .append(",\"p50\":").append(snapshot.getPercentileMicros(0.5))
+                        .append(",\"p90\":").append(snapshot.getPercentileMicros(0.9))
+                        .append(",\"p99\":").append(snapshot.getPercentileMicros(0.99))
+                        .append(",\"max\":").append(snapshot.getMaxMicros())
+                        .append('}');
+            }
+            return json.append("}}").toString();
+        }
+
+        @Override
+        public String toString() {
+            LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+            StringBuilder text = new StringBuilder(512);
+            text.append(String.format("frames=%d skipped=%d unchanged=%d tracked=%d detected=%d%n",
+                    mFrames, mSkipped, mUnchanged, mTracked, mDetected));
+            text.append(String.format("wall=%dms recorded=%dms fps=%.1f realTime=%.2fx%n",
+                    mWallNanos / 1000000, mRecordedNanos / 1000000, getFramesPerSecond(), getRealTimeFactor()));
+            text.append("stage      count    p50(us)    p90(us)    p99(us)    max(us)\n");
+            for (int i = 0; i < STAGES; i++) {
+                mHistograms[i].snapshot(snapshot);
+                text.append(String.format("%-8s %7d %10d %10d %10d %10d%n", STAGE_NAMES[i], snapshot.getCount(),
+                        snapshot.getPercentileMicros(0.5), snapshot.getPercentileMicros(0.9),
+                        snapshot.getPercentileMicros(0.99), snapshot.getMaxMicros()));
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Replays a recording and prints the report.
+     * <p/>
+     * Usage: {@code ReplayDriver FILE [scale=N] [filter=box|nearest] [rate=DETECTIONS_PER_SECOND]
+     * [motion=THRESHOLD] [track=INTERVAL] [detectMillis=MILLIS] [json]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: ReplayDriver FILE [scale=N] [filter=box|nearest] [rate=N]"
+                    + " [motion=N] [track=N] [detectMillis=N] [json]");
+            System.exit(2);
+        }
+        ReplayDriver driver = new ReplayDriver();
+        boolean json = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String key = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+            if ("scale".equals(key)) {
+                driver.setScale(Integer.parseInt(value));
+            } else if ("filter".equals(key)) {
+                driver.setFilter("nearest".equals(value) ? YuvConverter.FILTER_NEAREST : YuvConverter.FILTER_BOX);
+            } else if ("rate".equals(key)) {
+                driver.setDetectionsPerSecond(Float.parseFloat(value));
+            } else if ("motion".equals(key)) {
+                driver.setMotionGate(Integer.parseInt(value), driver.mMotionRefreshInterval);
+            } else if ("track".equals(key)) {
+                driver.setTrackDetectionInterval(Integer.parseInt(value));
+            } else if ("detectMillis".equals(key)) {
+                driver.setDetector(new StubDetector((long) (Double.parseDouble(value) * 1e6)));
+            } else if ("json".equals(key)) {
+                json = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        FrameReader reader = new FrameReader(new FileInputStream(args[0]));
+        try {
+            Report report = driver.run(reader);
+            System.out.println(json ? report.toJson() : report.toString());
+        } finally {
+            reader.close();
+        }
+    }
+}
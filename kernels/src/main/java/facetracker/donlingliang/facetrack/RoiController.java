@@ -0,0 +1,101 @@
+package facetracker.donlingliang.facetrack;
+
+/**
+ * Chooses, frame by frame, whether the detector should look at the whole preview or only at a
+ * padded window around the last tracked face.
+ * <p/>
+ * While a face is known, frames are cropped to the face bounds plus {@link #PADDING} on every
+ * side and reduced by the ROI factor, which is finer than the global detection scale.  Every
+ * {@code fullScanInterval} frames, or as soon as the face is lost, a full frame is scanned again
+ * so that new faces and fast motion are picked up.  All methods are thread safe.
+ */
+public class RoiController {
+    /**
+     * Padding added on each side of the face, as a fraction of the face size.
+     */
+    static final float PADDING = 0.5f;
+
+    private final int mFullScanInterval;
+    private final int mRoiFactor;
+
+    // Last face bounds in preview pixels, sensor orientation.
+    private final float[] mFaceRect = new float[4];
+    private boolean mHasFace;
+    private int mFramesSinceFullScan;
+
+    /**
+     * @param fullScanInterval the number of consecutive ROI frames allowed between full scans
+     * @param roiFactor        the reduction applied to the ROI window
+     */
+    public RoiController(int fullScanInterval, int roiFactor) {
+        if (fullScanInterval < 1) {
+            throw new IllegalArgumentException("Invalid full scan interval: " + fullScanInterval);
+        }
+        if (roiFactor < 1) {
+            throw new IllegalArgumentException("Invalid ROI factor: " + roiFactor);
+        }
+        mFullScanInterval = fullScanInterval;
+        mRoiFactor = roiFactor;
+    }
+
+    /**
+     * Fills {@code out} with the region to convert for the next frame.
+     *
+     * @param referenceScale the global detection scale
+     * @param rotation       quarter turns applied by the detector (as Frame.ROTATION_*)
+     */
+    public synchronized void nextRegion(int previewWidth, int previewHeight, int referenceScale,
+                                        int rotation, FrameRegion out) {
+        if (!mHasFace || mFramesSinceFullScan >= mFullScanInterval) {
+            mFramesSinceFullScan = 0;
+            out.setFullFrame(previewWidth, previewHeight, referenceScale, rotation);
+            return;
+        }
+        mFramesSinceFullScan++;
+
+        float padX = (mFaceRect[2] - mFaceRect[0]) * PADDING;
+        float padY = (mFaceRect[3] - mFaceRect[1]) * PADDING;
+        // Align the window so that the crop starts on a chroma sample and both sides are a whole
+        // number of 2x2 blocks after reduction.
+        int align = 2 * mRoiFactor;
+        int left = alignDown(Math.max(0f, mFaceRect[0] - padX), 2);
+        int top = alignDown(Math.max(0f, mFaceRect[1] - padY), 2);
+        int right = (int) Math.min(previewWidth, mFaceRect[2] + padX);
+        int bottom = (int) Math.min(previewHeight, mFaceRect[3] + padY);
+        int width = alignDown(right - left, align);
+        int height = alignDown(bottom - top, align);
+
+        long roiPixels = (long) (width / mRoiFactor) * (height / mRoiFactor);
+        long fullPixels = (long) (previewWidth / referenceScale) * (previewHeight / referenceScale);
+        if (width <= 0 || height <= 0 || roiPixels >= fullPixels) {
+            // The face fills most of the frame; a window would not save any work.
+            out.setFullFrame(previewWidth, previewHeight, referenceScale, rotation);
+            return;
+        }
+        out.set(left, top, width, height, mRoiFactor, previewWidth, previewHeight, referenceScale, rotation);
+    }
+
+    /**
+     * Records the bounds of the face detected in a frame.
+     *
+     * @param region the region the frame was converted from
+     * @param x      left edge in detector frame coordinates
+     * @param y      top edge in detector frame coordinates
+     */
+    public synchronized void onFace(FrameRegion region, float x, float y, float width, float height) {
+        region.toPreviewRect(x, y, width, height, mFaceRect);
+        mHasFace = mFaceRect[2] > mFaceRect[0] && mFaceRect[3] > mFaceRect[1];
+    }
+
+    /**
+     * Forgets the tracked face; the next frame is a full scan.
+     */
+    public synchronized void onFaceLost() {
+        mHasFace = false;
+    }
+
+    private static int alignDown(float value, int alignment) {
+        int v = (int) value;
+        return v - (v % alignment);
+    }
+}
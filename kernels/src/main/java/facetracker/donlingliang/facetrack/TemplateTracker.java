@@ -0,0 +1,176 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Follows a face between two detections by normalized cross-correlation of a luma template.
+ * <p/>
+ * The template is a {@link #TEMPLATE_SIZE} x {@link #TEMPLATE_SIZE} grid of samples taken over the
+ * face rectangle of a detected frame.  On the following frames the same grid is slid around the
+ * previous position, within {@link #SEARCH_RADIUS} grid steps, and the best matching offset is
+ * kept if its correlation is at least {@link #MIN_SCORE}.  Normalization makes the match robust
+ * to exposure changes; changes of scale and pose are not followed, which is why the full detector
+ * must run again periodically and as soon as the score drops.
+ * <p/>
+ * Positions are expressed in the pixels of the luma buffers, which must all have the same
+ * reduction.  Not thread safe.
+ */
+public class TemplateTracker {
+    static final int TEMPLATE_SIZE = 16;
+    static final int SEARCH_RADIUS = 4;
+    static final float MIN_SCORE = 0.6f;
+
+    private static final int SAMPLES = TEMPLATE_SIZE * TEMPLATE_SIZE;
+
+    // Template samples with their mean removed, and their norm.
+    private final float[] mTemplate = new float[SAMPLES];
+    private float mTemplateNorm;
+    private boolean mHasTemplate;
+
+    // Current face rectangle and the distance between samples, in buffer pixels.
+    private float mX;
+    private float mY;
+    private float mWidth;
+    private float mHeight;
+    private float mStepX;
+    private float mStepY;
+    private float mScore;
+
+    /**
+     * Takes the template over the given rectangle of a frame.  Returns false, and clears the
+     * template, if the rectangle is too small or not entirely inside the frame.
+     *
+     * @param luma the frame; its first {@code width * height} bytes are the luma plane
+     */
+    public boolean seed(ByteBuffer luma, int width, int height, float x, float y, float w, float h) {
+        mHasTemplate = false;
+        if (w < TEMPLATE_SIZE || h < TEMPLATE_SIZE || x < 0 || y < 0 || x + w > width || y + h > height) {
+            return false;
+        }
+        mX = x;
+        mY = y;
+        mWidth = w;
+        mHeight = h;
+        mStepX = w / TEMPLATE_SIZE;
+        mStepY = h / TEMPLATE_SIZE;
+
+        float sum = 0f;
+        int i = 0;
+        for (int ty = 0; ty < TEMPLATE_SIZE; ty++) {
+            int row = (int) (y + (ty + 0.5f) * mStepY) * width;
+            for (int tx = 0; tx < TEMPLATE_SIZE; tx++) {
+                float value = luma.get(row + (int) (x + (tx + 0.5f) * mStepX)) & 0xFF;
+                mTemplate[i++] = value;
+                sum += value;
+            }
+        }
+        float mean = sum / SAMPLES;
+        float norm = 0f;
+        for (i = 0; i < SAMPLES; i++) {
+            mTemplate[i] -= mean;
+            norm += mTemplate[i] * mTemplate[i];
+        }
+        if (norm == 0f) {
+            // A flat patch cannot be located.
+            return false;
+        }
+        mTemplateNorm = (float) Math.sqrt(norm);
+        mScore = 1f;
+        mHasTemplate = true;
+        return true;
+    }
+
+    /**
+     * Locates the template in a new frame around its previous position.  Returns true and moves
+     * the rectangle if a match was found; returns false, leaving the rectangle unchanged, if the
+     * face was lost or drifted, in which case the frame should go through the full detector.
+     */
+    public boolean track(ByteBuffer luma, int width, int height) {
+        if (!mHasTemplate) {
+            return false;
+        }
+        float bestScore = -1f;
+        int bestDx = 0;
+        int bestDy = 0;
+        for (int dy = -SEARCH_RADIUS; dy <= SEARCH_RADIUS; dy++) {
+            for (int dx = -SEARCH_RADIUS; dx <= SEARCH_RADIUS; dx++) {
+                float score = correlate(luma, width, height, mX + dx * mStepX, mY + dy * mStepY);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestDx = dx;
+                    bestDy = dy;
+                }
+            }
+        }
+        mScore = bestScore;
+        if (bestScore < MIN_SCORE) {
+            return false;
+        }
+        mX += bestDx * mStepX;
+        mY += bestDy * mStepY;
+        return true;
+    }
+
+    /**
+     * Normalized cross-correlation of the template with the grid placed at (x, y), in [-1, 1], or
+     * -1 if the grid does not fit in the frame.
+     */
+    private float correlate(ByteBuffer luma, int width, int height, float x, float y) {
+        if (x < 0 || y < 0 || x + mWidth > width || y + mHeight > height) {
+            return -1f;
+        }
+        float sum = 0f;
+        float sumSquares = 0f;
+        float cross = 0f;
+        int i = 0;
+        for (int ty = 0; ty < TEMPLATE_SIZE; ty++) {
+            int row = (int) (y + (ty + 0.5f) * mStepY) * width;
+            for (int tx = 0; tx < TEMPLATE_SIZE; tx++) {
+                float value = luma.get(row + (int) (x + (tx + 0.5f) * mStepX)) & 0xFF;
+                sum += value;
+                sumSquares += value * value;
+                cross += value * mTemplate[i++];
+            }
+        }
+        // The template has zero mean, so the patch mean drops out of the cross term.
+        float variance = sumSquares - sum * sum / SAMPLES;
+        if (variance <= 0f) {
+            return -1f;
+        }
+        return cross / (mTemplateNorm * (float) Math.sqrt(variance));
+    }
+
+    /**
+     * Forgets the template; {@link #track} fails until the next {@link #seed}.
+     */
+    public void clear() {
+        mHasTemplate = false;
+    }
+
+    public boolean hasTemplate() {
+        return mHasTemplate;
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    public float getWidth() {
+        return mWidth;
+    }
+
+    public float getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the correlation of the last match.
+     */
+    public float getScore() {
+        return mScore;
+    }
+}
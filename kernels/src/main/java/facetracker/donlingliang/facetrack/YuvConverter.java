@@ -0,0 +1,359 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 planes into NV21 (a full resolution Y plane followed by interleaved V/U
+ * samples).  Every layout produced by the camera HAL is honoured: fully planar (I420/YV12, pixel
+ * stride 1), semi-planar (NV12/NV21, pixel stride 2) and rows padded beyond the image width.
+ * <p/>
+ * {@link #convertToNV21Scaled} fuses the conversion with a reduction by an integer factor so the
+ * detector thumbnail is produced in a single read of the planes, either by point sampling
+ * ({@link #FILTER_NEAREST}) or by averaging each factor x factor block ({@link #FILTER_BOX}).
+ * <p/>
+ * {@link #convertLumaScaled} produces only the Y plane for grayscale consumers such as the face
+ * detector, skipping chroma entirely.
+ * <p/>
+ * The kernels never allocate; the caller supplies the output buffer, normally a direct one taken
+ * from a {@link FrameBufferPool} so the frame goes from the camera planes to the detector without
+ * passing through the Java heap.  Array overloads are provided for convenience.  Every kernel
+ * works on a range of output rows, which is what {@link ParallelYuvConverter} uses to split a
+ * frame into stripes.
+ */
+public final class YuvConverter {
+    public static final int FILTER_NEAREST = 0;
+    public static final int FILTER_BOX = 1;
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Returns the number of bytes of an NV21 frame of the given size.
+     */
+    public static int nv21Size(int width, int height) {
+        return width * height + 2 * (width / 2) * (height / 2);
+    }
+
+    /**
+     * Returns the number of bytes of a luma-only frame of the given size.
+     */
+    public static int lumaSize(int width, int height) {
+        return width * height;
+    }
+
+    /**
+     * Returns the size of one dimension after downscaling by {@code factor}.  Dimensions are kept
+     * even so that the result still has whole 2x2 chroma blocks.
+     */
+    public static int scaledDimension(int dimension, int factor) {
+        return (dimension / factor) & ~1;
+    }
+
+    /**
+     * Returns the width of the frame produced from {@code planes} when reduced by {@code factor}.
+     */
+    static int outputWidth(YuvPlanes planes, int factor) {
+        return factor == 1 ? planes.width : scaledDimension(planes.width, factor);
+    }
+
+    /**
+     * Returns the height of the frame produced from {@code planes} when reduced by {@code factor}.
+     */
+    static int outputHeight(YuvPlanes planes, int factor) {
+        return factor == 1 ? planes.height : scaledDimension(planes.height, factor);
+    }
+
+    /**
+     * Writes the supplied planes into {@code out} as NV21.
+     *
+     * @throws IllegalArgumentException if {@code out} is too small for the frame
+     */
+    public static void convertToNV21(YuvPlanes planes, byte[] out) {
+        convertToNV21Scaled(planes, 1, FILTER_NEAREST, out);
+    }
+
+    /**
+     * Writes the supplied planes into {@code out} as NV21 downscaled by {@code factor} in both
+     * dimensions, sampling every {@code factor}-th pixel.
+     *
+     * @see #convertToNV21Scaled(YuvPlanes, int, int, byte[])
+     */
+    public static void convertToNV21Scaled(YuvPlanes planes, int factor, byte[] out) {
+        convertToNV21Scaled(planes, factor, FILTER_NEAREST, out);
+    }
+
+    /**
+     * Writes the supplied planes into {@code out} as NV21 downscaled by {@code factor} in both
+     * dimensions, using the given filter for luma and chroma alike.  The planes are read directly,
+     * so a full resolution copy of the frame is never made.  The output is
+     * {@code scaledDimension(width, factor)} by {@code scaledDimension(height, factor)}, or the
+     * frame size itself when {@code factor} is 1.
+     *
+     * @param filter one of {@link #FILTER_NEAREST} or {@link #FILTER_BOX}
+     * @throws IllegalArgumentException if {@code factor} is not positive, {@code filter} is unknown
+     *                                  or {@code out} is too small for the scaled frame
+     */
+    public static void convertToNV21Scaled(YuvPlanes planes, int factor, int filter, byte[] out) {
+        convertToNV21Scaled(planes, factor, filter, ByteBuffer.wrap(out));
+    }
+
+    /**
+     * Same as {@link #convertToNV21Scaled(YuvPlanes, int, int, byte[])}, writing into a buffer,
+     * typically a pooled direct one, starting at index 0.  Absolute indices are used, so the
+     * position of {@code out} is not meaningful afterwards.
+     */
+    public static void convertToNV21Scaled(YuvPlanes planes, int factor, int filter, ByteBuffer out) {
+        checkArguments(planes, factor, filter, true, out);
+        convertRows(planes, factor, filter, true, out, 0, outputHeight(planes, factor));
+    }
+
+    /**
+     * Writes only the Y plane of the supplied planes into {@code out}, downscaled by
+     * {@code factor} with the given filter.  The chroma planes are never read.  The output is
+     * {@code scaledDimension(width, factor)} by {@code scaledDimension(height, factor)} bytes, or
+     * the frame size itself when {@code factor} is 1.
+     *
+     * @param filter one of {@link #FILTER_NEAREST} or {@link #FILTER_BOX}
+     * @throws IllegalArgumentException if {@code factor} is not positive, {@code filter} is unknown
+     *                                  or {@code out} is too small for the scaled frame
+     */
+    public static void convertLumaScaled(YuvPlanes planes, int factor, int filter, byte[] out) {
+        convertLumaScaled(planes, factor, filter, ByteBuffer.wrap(out));
+    }
+
+    /**
+     * Same as {@link #convertLumaScaled(YuvPlanes, int, int, byte[])}, writing into a buffer,
+     * typically a pooled direct one, starting at index 0.
+     */
+    public static void convertLumaScaled(YuvPlanes planes, int factor, int filter, ByteBuffer out) {
+        checkArguments(planes, factor, filter, false, out);
+        convertRows(planes, factor, filter, false, out, 0, outputHeight(planes, factor));
+    }
+
+    static void checkArguments(YuvPlanes planes, int factor, int filter, boolean chroma, ByteBuffer out) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Invalid scale factor: " + factor);
+        }
+        if (filter != FILTER_NEAREST && filter != FILTER_BOX) {
+            throw new IllegalArgumentException("Invalid filter: " + filter);
+        }
+        int outWidth = outputWidth(planes, factor);
+        int outHeight = outputHeight(planes, factor);
+        int size = chroma ? nv21Size(outWidth, outHeight) : lumaSize(outWidth, outHeight);
+        if (out.capacity() < size) {
+            throw new IllegalArgumentException("Output buffer too small: " + out.capacity());
+        }
+    }
+
+    /**
+     * Converts output rows {@code [rowStart, rowEnd)} of the frame, together with the chroma rows
+     * they cover when {@code chroma} is set.  {@code rowStart} must be even.  Arguments are not
+     * validated; see {@link #checkArguments}.
+     */
+    static void convertRows(YuvPlanes planes, int factor, int filter, boolean chroma, ByteBuffer out,
+                            int rowStart, int rowEnd) {
+        int outWidth = outputWidth(planes, factor);
+        int outHeight = outputHeight(planes, factor);
+        if (factor == 1) {
+            copyLuma(planes, out, rowStart, rowEnd);
+            if (chroma) {
+                copyChroma(planes, out, outWidth * outHeight, rowStart / 2, rowEnd / 2);
+            }
+        } else if (filter == FILTER_BOX) {
+            boxLuma(planes, factor, outWidth, out, rowStart, rowEnd);
+            if (chroma) {
+                boxChroma(planes, factor, outWidth, outHeight, out, rowStart / 2, rowEnd / 2);
+            }
+        } else {
+            sampleLuma(planes, factor, outWidth, out, rowStart, rowEnd);
+            if (chroma) {
+                sampleChroma(planes, factor, outWidth, outHeight, out, rowStart / 2, rowEnd / 2);
+            }
+        }
+    }
+
+    private static void copyLuma(YuvPlanes planes, ByteBuffer out, int rowStart, int rowEnd) {
+        ByteBuffer y = planes.y;
+        int width = planes.width;
+        int rowStride = planes.yRowStride;
+        int pixelStride = planes.yPixelStride;
+
+        if (pixelStride == 1 && rowStride == width) {
+            // Tightly packed: one bulk copy.
+            bulkCopy(y, planes.yOffset + rowStart * width, out, rowStart * width, (rowEnd - rowStart) * width);
+        } else if (pixelStride == 1) {
+            // Padded rows: bulk copy each row and skip the padding.
+            for (int row = rowStart; row < rowEnd; row++) {
+                bulkCopy(y, planes.yOffset + row * rowStride, out, row * width, width);
+            }
+        } else {
+            int o = rowStart * width;
+            for (int row = rowStart; row < rowEnd; row++) {
+                int base = planes.yOffset + row * rowStride;
+                for (int col = 0; col < width; col++) {
+                    out.put(o++, y.get(base + col * pixelStride));
+                }
+            }
+        }
+        y.position(planes.yOffset);
+    }
+
+    private static void copyChroma(YuvPlanes planes, ByteBuffer out, int offset, int rowStart, int rowEnd) {
+        ByteBuffer u = planes.u;
+        ByteBuffer v = planes.v;
+        int chromaWidth = planes.width / 2;
+        int rowStride = planes.uvRowStride;
+        int pixelStride = planes.uvPixelStride;
+
+        int o = offset + rowStart * 2 * chromaWidth;
+        if (pixelStride == 2 && chromaWidth > 0) {
+            // Semi-planar: the V row already holds every other output byte, so copy it in bulk
+            // and then fill in the U samples.  The trailing U of the row is not part of the V
+            // row's last valid sample, hence the length of 2 * chromaWidth - 1.
+            int rowLength = 2 * chromaWidth - 1;
+            for (int row = rowStart; row < rowEnd; row++) {
+                int vBase = planes.vOffset + row * rowStride;
+                int uBase = planes.uOffset + row * rowStride;
+                bulkCopy(v, vBase, out, o, rowLength);
+                for (int col = 0; col < chromaWidth; col++) {
+                    out.put(o + 2 * col + 1, u.get(uBase + 2 * col));
+                }
+                o += 2 * chromaWidth;
+            }
+        } else {
+            for (int row = rowStart; row < rowEnd; row++) {
+                int vBase = planes.vOffset + row * rowStride;
+                int uBase = planes.uOffset + row * rowStride;
+                for (int col = 0; col < chromaWidth; col++) {
+                    out.put(o++, v.get(vBase + col * pixelStride));
+                    out.put(o++, u.get(uBase + col * pixelStride));
+                }
+            }
+        }
+        u.position(planes.uOffset);
+        v.position(planes.vOffset);
+    }
+
+    private static void sampleLuma(YuvPlanes planes, int factor, int outWidth, ByteBuffer out,
+                                   int rowStart, int rowEnd) {
+        ByteBuffer y = planes.y;
+        int yStep = factor * planes.yPixelStride;
+        int o = rowStart * outWidth;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int base = planes.yOffset + row * factor * planes.yRowStride;
+            for (int col = 0; col < outWidth; col++) {
+                out.put(o++, y.get(base + col * yStep));
+            }
+        }
+    }
+
+    private static void sampleChroma(YuvPlanes planes, int factor, int outWidth, int outHeight, ByteBuffer out,
+                                     int rowStart, int rowEnd) {
+        // Output chroma sample (cx, cy) covers output luma (2cx, 2cy), which is source luma
+        // (2cx * factor, 2cy * factor), i.e. source chroma (cx * factor, cy * factor).
+        ByteBuffer u = planes.u;
+        ByteBuffer v = planes.v;
+        int uvStep = factor * planes.uvPixelStride;
+        int chromaWidth = outWidth / 2;
+        int o = outWidth * outHeight + rowStart * 2 * chromaWidth;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int uBase = planes.uOffset + row * factor * planes.uvRowStride;
+            int vBase = planes.vOffset + row * factor * planes.uvRowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                out.put(o++, v.get(vBase + col * uvStep));
+                out.put(o++, u.get(uBase + col * uvStep));
+            }
+        }
+    }
+
+    private static void boxLuma(YuvPlanes planes, int factor, int outWidth, ByteBuffer out,
+                                int rowStart, int rowEnd) {
+        ByteBuffer y = planes.y;
+        int rowStride = planes.yRowStride;
+        int pixelStride = planes.yPixelStride;
+        int shift = areaShift(factor);
+        int area = factor * factor;
+        int half = area >> 1;
+        int o = rowStart * outWidth;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int blockBase = planes.yOffset + row * factor * rowStride;
+            for (int col = 0; col < outWidth; col++) {
+                int base = blockBase + col * factor * pixelStride;
+                int sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    int index = base + dy * rowStride;
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += y.get(index) & 0xFF;
+                        index += pixelStride;
+                    }
+                }
+                out.put(o++, (byte) (shift >= 0 ? (sum + half) >> shift : (sum + half) / area));
+            }
+        }
+    }
+
+    private static void boxChroma(YuvPlanes planes, int factor, int outWidth, int outHeight, ByteBuffer out,
+                                  int rowStart, int rowEnd) {
+        // Each output chroma sample averages the factor x factor block of source chroma samples
+        // that lies under its 2x2 output luma block.
+        ByteBuffer u = planes.u;
+        ByteBuffer v = planes.v;
+        int rowStride = planes.uvRowStride;
+        int pixelStride = planes.uvPixelStride;
+        int shift = areaShift(factor);
+        int area = factor * factor;
+        int half = area >> 1;
+        int chromaWidth = outWidth / 2;
+        int o = outWidth * outHeight + rowStart * 2 * chromaWidth;
+        for (int row = rowStart; row < rowEnd; row++) {
+            int rowOffset = row * factor * rowStride;
+            for (int col = 0; col < chromaWidth; col++) {
+                int uBase = planes.uOffset + rowOffset + col * factor * pixelStride;
+                int vBase = planes.vOffset + rowOffset + col * factor * pixelStride;
+                int uSum = 0;
+                int vSum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    int delta = dy * rowStride;
+                    for (int dx = 0; dx < factor; dx++) {
+                        uSum += u.get(uBase + delta) & 0xFF;
+                        vSum += v.get(vBase + delta) & 0xFF;
+                        delta += pixelStride;
+                    }
+                }
+                if (shift >= 0) {
+                    out.put(o++, (byte) ((vSum + half) >> shift));
+                    out.put(o++, (byte) ((uSum + half) >> shift));
+                } else {
+                    out.put(o++, (byte) ((vSum + half) / area));
+                    out.put(o++, (byte) ((uSum + half) / area));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies {@code length} bytes from {@code src} at {@code srcIndex} into {@code dst} at
+     * {@code dstIndex}.  Between two direct buffers this is a plain memory copy.  The limit of
+     * {@code src} is restored afterwards; both positions are left modified.
+     */
+    private static void bulkCopy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+        int limit = src.limit();
+        src.limit(srcIndex + length);
+        src.position(srcIndex);
+        dst.position(dstIndex);
+        dst.put(src);
+        src.limit(limit);
+    }
+
+    /**
+     * Returns log2(factor * factor) when the block area is a power of two, so averaging can use a
+     * shift, or -1 otherwise.
+     */
+    private static int areaShift(int factor) {
+        int area = factor * factor;
+        if ((area & (area - 1)) != 0) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(area);
+    }
+}
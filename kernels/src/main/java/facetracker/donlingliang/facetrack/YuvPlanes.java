@@ -0,0 +1,137 @@
+package facetracker.donlingliang.facetrack;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain description of a YUV_420_888 frame: the three plane buffers together with their row and
+ * pixel strides.  This mirrors {@link android.media.Image.Plane} so that the conversion kernels can
+ * be fed either from a camera {@link android.media.Image} or from synthetic buffers on the JVM.
+ * <p/>
+ * Instances are meant to be reused from frame to frame through {@link #set}, so nothing is
+ * allocated on the preview path.
+ */
+public final class YuvPlanes {
+    int width;
+    int height;
+
+    ByteBuffer y;
+    int yOffset;
+    int yRowStride;
+    int yPixelStride;
+
+    ByteBuffer u;
+    int uOffset;
+    ByteBuffer v;
+    int vOffset;
+    int uvRowStride;
+    int uvPixelStride;
+
+    /**
+     * Points this instance at a new set of planes.  The current position of every buffer is taken
+     * as the offset of its first sample.
+     */
+    public YuvPlanes set(int width, int height,
+                         ByteBuffer y, int yRowStride, int yPixelStride,
+                         ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.yOffset = y.position();
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.u = u;
+        this.uOffset = u.position();
+        this.v = v;
+        this.vOffset = v.position();
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        return this;
+    }
+
+    /**
+     * Points this instance at a luma plane only.  The chroma planes are cleared, so only the luma
+     * kernels of {@link YuvConverter} may be used with it.
+     */
+    public YuvPlanes setLuma(int width, int height, ByteBuffer y, int yRowStride, int yPixelStride) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size: " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.yOffset = y.position();
+        this.yRowStride = yRowStride;
+        this.yPixelStride = yPixelStride;
+        this.u = null;
+        this.v = null;
+        this.uvRowStride = 0;
+        this.uvPixelStride = 0;
+        return this;
+    }
+
+    /**
+     * Makes this instance describe the same frame as {@code other}, read through the given
+     * buffers: {@code other}'s own buffers, or duplicates of them with their own position so that
+     * the two instances can be used from different threads.  Crop offsets are copied as well.
+     */
+    public YuvPlanes setViewOf(YuvPlanes other, ByteBuffer y, ByteBuffer u, ByteBuffer v) {
+        this.width = other.width;
+        this.height = other.height;
+        this.y = y;
+        this.yOffset = other.yOffset;
+        this.yRowStride = other.yRowStride;
+        this.yPixelStride = other.yPixelStride;
+        this.u = u;
+        this.uOffset = other.uOffset;
+        this.v = v;
+        this.vOffset = other.vOffset;
+        this.uvRowStride = other.uvRowStride;
+        this.uvPixelStride = other.uvPixelStride;
+        return this;
+    }
+
+    /**
+     * Narrows this view to a window of the current frame.  Offsets are moved in place, so nothing
+     * is copied.  {@code left} and {@code top} must be even so that the window starts on a chroma
+     * sample.
+     */
+    public YuvPlanes crop(int left, int top, int width, int height) {
+        if ((left & 1) != 0 || (top & 1) != 0) {
+            throw new IllegalArgumentException("Crop origin must be even: " + left + "," + top);
+        }
+        if (left < 0 || top < 0 || width <= 0 || height <= 0
+                || left + width > this.width || top + height > this.height) {
+            throw new IllegalArgumentException("Crop outside of frame: " + left + "," + top + " "
+                    + width + "x" + height);
+        }
+        yOffset += top * yRowStride + left * yPixelStride;
+        if (u != null) {
+            int chromaOffset = (top / 2) * uvRowStride + (left / 2) * uvPixelStride;
+            uOffset += chromaOffset;
+            vOffset += chromaOffset;
+        }
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * Drops the references to the plane buffers so that a closed image is not kept reachable.
+     */
+    public void clear() {
+        y = null;
+        u = null;
+        v = null;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,51 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link DetectionGovernor} with a synthetic 30 fps clock.
+ */
+public class DetectionGovernorTest {
+    private static final long FRAME_NANOS = 33333333L;
+    private static final long MILLIS = 1000000L;
+
+    private static int admitted(DetectionGovernor governor, int frames, long latencyNanos) {
+        int admitted = 0;
+        for (int i = 0; i < frames; i++) {
+            if (governor.onFrameArrival(i * FRAME_NANOS)) {
+                admitted++;
+                governor.onDetection(latencyNanos);
+            }
+        }
+        return admitted;
+    }
+
+    @Test
+    public void pacesFastDetectorToTargetRate() {
+        DetectionGovernor governor = DetectionGovernor.forRate(15f);
+        governor.reset(4);
+        assertEquals(150, admitted(governor, 300, 5 * MILLIS));
+        assertEquals(4, governor.getScale());
+    }
+
+    @Test
+    public void coarsensScaleWhenDetectorIsTooSlow() {
+        DetectionGovernor governor = DetectionGovernor.forRate(15f);
+        governor.reset(2);
+        admitted(governor, 300, 120 * MILLIS);
+        assertEquals(DetectionGovernor.MAX_SCALE, governor.getScale());
+    }
+
+    @Test
+    public void cpuBudgetStretchesInterval() {
+        DetectionGovernor governor = DetectionGovernor.forCpuBudget(0.5f);
+        governor.reset(8);
+        // 40 ms per detection at half a core leaves room for one detection every 80 ms, i.e.
+        // 12.5 per second rather than one on every other frame.
+        int admitted = admitted(governor, 300, 40 * MILLIS);
+        assertTrue("admitted " + admitted, admitted >= 125 && admitted <= 126);
+    }
+}
@@ -0,0 +1,89 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the landmark bookkeeping and geometry of {@link FaceState}, and that updating it once per
+ * draw does not allocate.
+ */
+public class FaceStateTest {
+    private static final int LEFT_EYE = 4;
+    private static final int RIGHT_EYE = 10;
+
+    @Test
+    public void landmarksAreTrackedByType() {
+        FaceState state = new FaceState();
+        state.setLandmark(LEFT_EYE, 10f, 20f);
+        state.setLandmark(RIGHT_EYE, 40f, 60f);
+        state.setLandmark(FaceState.LANDMARKS, 1f, 1f);
+
+        assertTrue(state.hasLandmark(LEFT_EYE));
+        assertFalse(state.hasLandmark(0));
+        assertFalse(state.hasLandmark(FaceState.LANDMARKS));
+        assertEquals((1 << LEFT_EYE) | (1 << RIGHT_EYE), state.getLandmarkMask());
+        assertEquals(50f, state.landmarkDistance(LEFT_EYE, RIGHT_EYE), 1e-4f);
+        assertEquals(-1f, state.landmarkDistance(LEFT_EYE, 0), 0f);
+
+        float[] mid = new float[2];
+        assertTrue(state.landmarkMidpoint(LEFT_EYE, RIGHT_EYE, mid));
+        assertEquals(25f, mid[0], 0f);
+        assertEquals(40f, mid[1], 0f);
+
+        FaceState copy = new FaceState().set(state);
+        state.clear();
+        assertFalse(state.hasLandmark(LEFT_EYE));
+        assertEquals(40f, copy.getLandmarkX(RIGHT_EYE), 0f);
+        assertEquals(60f, copy.getLandmarkY(RIGHT_EYE), 0f);
+    }
+
+    @Test
+    public void updatesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported()
+                && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        FaceState state = new FaceState();
+        // Warm up, so that neither class loading nor compilation is counted.
+        float sink = update(state, 20000);
+
+        // Reading the counter may allocate itself; measure that and subtract it.
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before;
+        before = threads.getThreadAllocatedBytes(thread);
+        sink += update(state, 100000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+
+        assertTrue(sink != 0f);
+        assertEquals(0L, allocated);
+    }
+
+    /**
+     * Makes the calls {@code FaceGraphic.draw} makes on its state for every draw, with the
+     * landmarks it maps.
+     */
+    private static float update(FaceState state, int iterations) {
+        float sum = 0f;
+        for (int i = 0; i < iterations; i++) {
+            state.setBounds(i, i + 1, 100f, 120f, i + 12.5f, i + 16f);
+            state.setProbabilities(0.5f, 0.9f, 0.8f);
+            state.setAngles(10f, -5f);
+            state.clearLandmarks();
+            for (int type = 0; type < FaceState.LANDMARKS; type++) {
+                state.setLandmark(type, i + type, i - type);
+            }
+            // Read the state back, as drawing does.
+            sum += state.eulerZ + state.getLandmarkX(LEFT_EYE);
+        }
+        return sum;
+    }
+}
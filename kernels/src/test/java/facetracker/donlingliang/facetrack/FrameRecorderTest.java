@@ -0,0 +1,136 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records synthetic frames with {@link FrameRecorder}, plays them back with {@link FrameReader}
+ * and through the {@link ReplayDriver}.
+ */
+public class FrameRecorderTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    /**
+     * A semi-planar frame with padded rows whose content depends on {@code seed}.
+     */
+    private static YuvPlanes paddedFrame(int seed) {
+        int rowStride = WIDTH + 16;
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        ByteBuffer chroma = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        for (int i = 0; i < y.capacity(); i++) {
+            y.put(i, (byte) (i * 7 + seed));
+        }
+        for (int i = 0; i < chroma.capacity(); i++) {
+            chroma.put(i, (byte) (i * 13 + seed));
+        }
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        chroma.position(0);
+        ByteBuffer u = chroma.slice();
+        return new YuvPlanes().set(WIDTH, HEIGHT, y, rowStride, 1, u, v, rowStride, 2);
+    }
+
+    private static byte[] toNV21(YuvPlanes planes) {
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.convertToNV21(planes, out);
+        return out;
+    }
+
+    private static byte[] record(int frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FrameRecorder recorder = new FrameRecorder(bytes);
+        for (int i = 0; i < frames; i++) {
+            recorder.writeFrame(paddedFrame(i), 1000000000L + i * 33000000L);
+        }
+        assertEquals(frames, recorder.getFrameCount());
+        recorder.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void playsBackRecordedFrames() throws IOException {
+        byte[] recording = record(2);
+        // Header, then per frame a timestamp, the size and 1.5 bytes per pixel.
+        assertEquals(8 + 2 * (16 + WIDTH * HEIGHT * 3 / 2), recording.length);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(recording));
+        for (int i = 0; i < 2; i++) {
+            assertTrue(reader.next());
+            assertEquals(1000000000L + i * 33000000L, reader.getTimestampNanos());
+            assertEquals(WIDTH, reader.getPlanes().getWidth());
+            assertArrayEquals(toNV21(paddedFrame(i)), toNV21(reader.getPlanes()));
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void packedFramesAreRecordedLikeDirectOnes() throws IOException {
+        ByteArrayOutputStream direct = new ByteArrayOutputStream();
+        FrameRecorder recorder = new FrameRecorder(direct);
+        recorder.writeFrame(paddedFrame(3), 42L);
+        recorder.close();
+
+        YuvPlanes planes = paddedFrame(3);
+        ByteBuffer packed = ByteBuffer.allocateDirect(FrameRecorder.packedSize(WIDTH, HEIGHT));
+        FrameRecorder.pack(planes, packed);
+        assertEquals(0, planes.y.position());
+        ByteArrayOutputStream deferred = new ByteArrayOutputStream();
+        recorder = new FrameRecorder(deferred);
+        recorder.writePackedFrame(packed, WIDTH, HEIGHT, 42L);
+        assertEquals(1, recorder.getFrameCount());
+        recorder.close();
+
+        assertArrayEquals(direct.toByteArray(), deferred.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new FrameReader(new ByteArrayInputStream(new byte[8]));
+    }
+
+    @Test
+    public void replayAccountsForEveryFrame() throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(record(30)));
+        ReplayDriver.Report report = new ReplayDriver()
+                .setScale(2)
+                .setDetector(new ReplayDriver.StubDetector(0))
+                .run(reader);
+        assertEquals(30, report.getFrames());
+        // The governor is opt-in, since recordings are taken before the device's governor.
+        assertEquals(0, report.getSkipped());
+        assertEquals(report.getFrames(), report.getSkipped() + report.getUnchanged()
+                + report.getTracked() + report.getDetected());
+        assertTrue(report.getDetected() > 0);
+        assertEquals(report.getFrames() - report.getSkipped(),
+                report.getHistogram(ReplayDriver.STAGE_CONVERT).snapshot(new LatencyHistogram.Snapshot()).getCount());
+        assertEquals(report.getTracked() + report.getDetected(),
+                report.getHistogram(ReplayDriver.STAGE_LATENCY).snapshot(new LatencyHistogram.Snapshot()).getCount());
+    }
+
+    @Test
+    public void latencyIncludesWaitingForSlowerFrames() throws IOException {
+        // Frames are captured every 33ms and each takes at least 50ms, so frame i cannot be done
+        // before 50 * (i + 1) - 33 * i ms after its capture.
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(record(6)));
+        ReplayDriver.Report report = new ReplayDriver()
+                .setMotionGate(0, 0)
+                .setTrackDetectionInterval(1)
+                .setDetector(new ReplayDriver.StubDetector(50000000L))
+                .run(reader);
+        LatencyHistogram.Snapshot latency =
+                report.getHistogram(ReplayDriver.STAGE_LATENCY).snapshot(new LatencyHistogram.Snapshot());
+        assertEquals(6, latency.getCount());
+        assertTrue(latency.getMaxMicros() >= (50 + 17 * 5) * 1000);
+    }
+}
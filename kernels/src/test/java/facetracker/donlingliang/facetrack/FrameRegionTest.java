@@ -0,0 +1,86 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link FrameRegion} maps region of interest detections onto the full frame for every
+ * detector rotation, and that {@link RoiController} crops around a reported face.
+ */
+public class FrameRegionTest {
+    private static final int PREVIEW_WIDTH = 1920;
+    private static final int PREVIEW_HEIGHT = 1080;
+    private static final int SCALE = 4;
+
+    @Test
+    public void regionDetectionsMapToFullFrameRect() {
+        for (int rotation = 0; rotation < 4; rotation++) {
+            // A face at preview (800, 400)-(1000, 600) detected in a 2x reduced window.
+            FrameRegion roi = new FrameRegion().set(600, 200, 800, 600, 2,
+                    PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, rotation);
+            float[] rect = new float[4];
+            float[] detection = rotatedDetection(rotation, 800 - 600, 400 - 200, 1000 - 600, 600 - 200, 800, 600, 2);
+            roi.toPreviewRect(detection[0], detection[1], detection[2], detection[3], rect);
+            assertEquals("rotation " + rotation, 800f, rect[0], 0.01f);
+            assertEquals("rotation " + rotation, 400f, rect[1], 0.01f);
+            assertEquals("rotation " + rotation, 1000f, rect[2], 0.01f);
+            assertEquals("rotation " + rotation, 600f, rect[3], 0.01f);
+            assertEquals(100f / SCALE, roi.mapSize(50f), 0.01f);
+        }
+    }
+
+    @Test
+    public void controllerCropsAroundFaceAndRescans() {
+        RoiController controller = new RoiController(2, 2);
+        FrameRegion full = new FrameRegion().setFullFrame(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0);
+        FrameRegion next = new FrameRegion();
+
+        controller.nextRegion(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0, next);
+        assertTrue(next.isFullFrame());
+
+        // Face at preview (800, 400)-(1000, 600), i.e. (200, 100) 50x50 in the thumbnail.
+        controller.onFace(full, 200, 100, 50, 50);
+        controller.nextRegion(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0, next);
+        assertFalse(next.isFullFrame());
+        assertEquals(700, next.getLeft());
+        assertEquals(300, next.getTop());
+        assertEquals(0, next.getWidth() % 4);
+        assertTrue(next.getLeft() + next.getWidth() <= 1100);
+
+        controller.nextRegion(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0, next);
+        assertFalse(next.isFullFrame());
+        controller.nextRegion(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0, next);
+        assertTrue(next.isFullFrame());
+
+        controller.onFaceLost();
+        controller.nextRegion(PREVIEW_WIDTH, PREVIEW_HEIGHT, SCALE, 0, next);
+        assertTrue(next.isFullFrame());
+    }
+
+    /**
+     * Returns the x, y, width and height the detector reports for a sensor oriented rectangle of a
+     * w x h window reduced by factor, after rotating it clockwise by the given quarter turns.
+     */
+    private static float[] rotatedDetection(int rotation, float left, float top, float right, float bottom,
+                                            float w, float h, int factor) {
+        left /= factor;
+        top /= factor;
+        right /= factor;
+        bottom /= factor;
+        w /= factor;
+        h /= factor;
+        switch (rotation) {
+            case 1:
+                return new float[]{h - bottom, left, bottom - top, right - left};
+            case 2:
+                return new float[]{w - right, h - bottom, right - left, bottom - top};
+            case 3:
+                return new float[]{top, w - right, bottom - top, right - left};
+            default:
+                return new float[]{left, top, right - left, bottom - top};
+        }
+    }
+}
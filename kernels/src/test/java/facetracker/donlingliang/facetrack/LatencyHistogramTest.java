@@ -0,0 +1,49 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bucket layout of {@link LatencyHistogram} and the percentiles read from it.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() {
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            long lower = LatencyHistogram.lowerBound(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            if (bucket > 0) {
+                assertEquals(bucket - 1, LatencyHistogram.bucketOf(lower - 1));
+            }
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1 to 1000 milliseconds, once each.
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * 1000000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot(new LatencyHistogram.Snapshot());
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(1000000, snapshot.getMaxMicros());
+        assertEquals(500500, snapshot.getMeanMicros());
+        assertWithin(500000, snapshot.getPercentileMicros(0.5));
+        assertWithin(990000, snapshot.getPercentileMicros(0.99));
+        assertEquals(1000000, snapshot.getPercentileMicros(1));
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot(snapshot).getCount());
+        assertEquals(0, snapshot.getPercentileMicros(0.5));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+    }
+}
@@ -0,0 +1,47 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic luma frames through {@link MotionGate}.
+ */
+public class MotionGateTest {
+    private static final int WIDTH = 80;
+    private static final int HEIGHT = 60;
+
+    private static ByteBuffer frame(int brightness) {
+        ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            luma.put(i, (byte) (brightness + (i % 7)));
+        }
+        return luma;
+    }
+
+    @Test
+    public void skipsStaticFramesUntilRefresh() {
+        FrameRegion region = new FrameRegion().setFullFrame(WIDTH * 4, HEIGHT * 4, 4, 1);
+        MotionGate gate = new MotionGate(3, 2);
+        assertTrue(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+        assertFalse(gate.shouldDetect(frame(101), WIDTH, HEIGHT, region));
+        assertFalse(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+        // Forced refresh after two skips.
+        assertTrue(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+        // A brightness change above the threshold is detected immediately.
+        assertTrue(gate.shouldDetect(frame(110), WIDTH, HEIGHT, region));
+    }
+
+    @Test
+    public void detectsWhenRegionChanges() {
+        FrameRegion region = new FrameRegion().setFullFrame(WIDTH * 4, HEIGHT * 4, 4, 1);
+        MotionGate gate = new MotionGate(3, 10);
+        assertTrue(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+        region.set(8, 8, WIDTH * 2, HEIGHT * 2, 2, WIDTH * 4, HEIGHT * 4, 4, 1);
+        assertTrue(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+        assertFalse(gate.shouldDetect(frame(100), WIDTH, HEIGHT, region));
+    }
+}
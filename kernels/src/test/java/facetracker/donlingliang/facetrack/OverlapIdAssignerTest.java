@@ -0,0 +1,70 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that {@link OverlapIdAssigner} follows items across frames detected by different
+ * detector instances.
+ */
+public class OverlapIdAssignerTest {
+
+    @Test
+    public void faceKeepsOneIdAcrossTwoWorkers() {
+        OverlapIdAssigner ids = new OverlapIdAssigner();
+        int first = -1;
+        for (int frame = 0; frame < 20; frame++) {
+            // Frames alternate between two workers whose detectors number the face 100 and 200;
+            // the face moves right by 2 pixels a frame.
+            int workerId = frame % 2 == 0 ? 100 : 200;
+            ids.beginFrame();
+            int id = ids.assign(10 + 2 * frame, 10, 40, 40);
+            ids.endFrame();
+            if (frame == 0) {
+                first = id;
+            }
+            assertEquals("frame " + frame + " of worker " + workerId, first, id);
+        }
+    }
+
+    @Test
+    public void itemsMatchTheirOwnPredecessor() {
+        OverlapIdAssigner ids = new OverlapIdAssigner();
+        ids.beginFrame();
+        int left = ids.assign(0, 0, 40, 40);
+        int right = ids.assign(100, 0, 40, 40);
+        ids.endFrame();
+        assertNotEquals(left, right);
+
+        // Listed in the other order, slightly moved, with a new face far from both.
+        ids.beginFrame();
+        assertEquals(right, ids.assign(104, 2, 40, 40));
+        assertEquals(left, ids.assign(-4, 0, 40, 40));
+        int added = ids.assign(300, 300, 40, 40);
+        ids.endFrame();
+        assertNotEquals(left, added);
+        assertNotEquals(right, added);
+
+        // A face that jumped too far for the boxes to overlap enough gets a new id.
+        ids.beginFrame();
+        int jumped = ids.assign(30, 0, 40, 40);
+        ids.endFrame();
+        assertNotEquals(left, jumped);
+        assertNotEquals(added, jumped);
+
+        ids.reset();
+        ids.beginFrame();
+        assertNotEquals(jumped, ids.assign(30, 0, 40, 40));
+        ids.endFrame();
+    }
+
+    @Test
+    public void overlapIsIntersectionOverUnion() {
+        float[] boxes = {0, 0, 10, 10};
+        assertEquals(1f, OverlapIdAssigner.overlap(0, 0, 10, 10, boxes, 0), 1e-6f);
+        assertEquals(50f / 150f, OverlapIdAssigner.overlap(5, 0, 10, 10, boxes, 0), 1e-6f);
+        assertEquals(0f, OverlapIdAssigner.overlap(10, 0, 10, 10, boxes, 0), 0f);
+    }
+}
@@ -0,0 +1,53 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves a textured patch across synthetic luma frames and follows it with
+ * {@link TemplateTracker}.
+ */
+public class TemplateTrackerTest {
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 90;
+
+    private static ByteBuffer frame(int patchX, int patchY, int gain) {
+        ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = 40;
+                int px = x - patchX;
+                int py = y - patchY;
+                if (px >= 0 && px < 32 && py >= 0 && py < 32) {
+                    value = 60 + ((px * 7 + py * 13 + (px * py) % 11) % 100);
+                }
+                luma.put(y * WIDTH + x, (byte) Math.min(255, value * gain / 2));
+            }
+        }
+        return luma;
+    }
+
+    @Test
+    public void followsShiftedPatchUnderExposureChange() {
+        TemplateTracker tracker = new TemplateTracker();
+        assertTrue(tracker.seed(frame(40, 30, 2), WIDTH, HEIGHT, 40, 30, 32, 32));
+        // Moved by four samples (two pixels each) right and two down, and brighter.
+        assertTrue(tracker.track(frame(48, 34, 3), WIDTH, HEIGHT));
+        assertEquals(48f, tracker.getX(), 0.01f);
+        assertEquals(34f, tracker.getY(), 0.01f);
+        assertTrue(tracker.getScore() > 0.9f);
+    }
+
+    @Test
+    public void losesPatchOutsideSearchWindow() {
+        TemplateTracker tracker = new TemplateTracker();
+        tracker.seed(frame(10, 10, 2), WIDTH, HEIGHT, 10, 10, 32, 32);
+        assertFalse(tracker.track(frame(80, 50, 2), WIDTH, HEIGHT));
+        assertEquals(10f, tracker.getX(), 0.01f);
+    }
+}
@@ -0,0 +1,328 @@
+package facetracker.donlingliang.facetrack;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic YUV_420_888 layouts through {@link YuvConverter} and checks the NV21 output.
+ */
+public class YuvConverterTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    private static byte lumaAt(int x, int y) {
+        return (byte) (y * WIDTH + x);
+    }
+
+    private static byte uAt(int x, int y) {
+        return (byte) (100 + y * WIDTH + x);
+    }
+
+    private static byte vAt(int x, int y) {
+        return (byte) (200 + y * WIDTH + x);
+    }
+
+    private static byte[] expectedNV21() {
+        byte[] expected = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        int i = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                expected[i++] = lumaAt(x, y);
+            }
+        }
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                expected[i++] = vAt(x, y);
+                expected[i++] = uAt(x, y);
+            }
+        }
+        return expected;
+    }
+
+    private static ByteBuffer lumaPlane(int rowStride) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * (HEIGHT - 1) + WIDTH);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                buffer.put(y * rowStride + x, lumaAt(x, y));
+            }
+        }
+        return buffer;
+    }
+
+    @Test
+    public void planarTightRows() {
+        int cw = WIDTH / 2;
+        int ch = HEIGHT / 2;
+        ByteBuffer u = ByteBuffer.allocateDirect(cw * ch);
+        ByteBuffer v = ByteBuffer.allocateDirect(cw * ch);
+        for (int y = 0; y < ch; y++) {
+            for (int x = 0; x < cw; x++) {
+                u.put(y * cw + x, uAt(x, y));
+                v.put(y * cw + x, vAt(x, y));
+            }
+        }
+        YuvPlanes planes = new YuvPlanes().set(WIDTH, HEIGHT, lumaPlane(WIDTH), WIDTH, 1, u, v, cw, 1);
+
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.convertToNV21(planes, out);
+        assertArrayEquals(expectedNV21(), out);
+    }
+
+    @Test
+    public void directOutputMatchesArrayOutput() {
+        int rowStride = WIDTH + 2;
+        ByteBuffer chroma = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                chroma.put(y * rowStride + 2 * x, vAt(x, y));
+                chroma.put(y * rowStride + 2 * x + 1, uAt(x, y));
+            }
+        }
+        chroma.position(1);
+        ByteBuffer u = chroma.slice();
+        chroma.position(0);
+        ByteBuffer v = chroma.slice();
+        YuvPlanes planes = new YuvPlanes().set(WIDTH, HEIGHT, lumaPlane(rowStride), rowStride, 1, u, v, rowStride, 2);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(YuvConverter.nv21Size(WIDTH, HEIGHT));
+        YuvConverter.convertToNV21Scaled(planes, 1, YuvConverter.FILTER_NEAREST, direct);
+        byte[] copy = new byte[direct.capacity()];
+        direct.position(0);
+        direct.get(copy);
+        assertArrayEquals(expectedNV21(), copy);
+    }
+
+    @Test
+    public void semiPlanarPaddedRows() {
+        // NV12 memory order (U first) with 4 bytes of row padding on every plane.
+        int rowStride = WIDTH + 4;
+        ByteBuffer chroma = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        for (int y = 0; y < HEIGHT / 2; y++) {
+            for (int x = 0; x < WIDTH / 2; x++) {
+                chroma.put(y * rowStride + 2 * x, uAt(x, y));
+                chroma.put(y * rowStride + 2 * x + 1, vAt(x, y));
+            }
+        }
+        chroma.position(0);
+        ByteBuffer u = chroma.slice();
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        YuvPlanes planes = new YuvPlanes().set(WIDTH, HEIGHT, lumaPlane(rowStride), rowStride, 1, u, v, rowStride, 2);
+
+        byte[] out = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+        YuvConverter.convertToNV21(planes, out);
+        assertArrayEquals(expectedNV21(), out);
+
+        // The planes can be converted again: buffer positions are left untouched.
+        byte[] again = new byte[out.length];
+        YuvConverter.convertToNV21(planes, again);
+        assertArrayEquals(out, again);
+    }
+
+    @Test
+    public void scaledConversionSamplesEveryOtherPixel() {
+        int cw = WIDTH / 2;
+        int ch = HEIGHT / 2;
+        ByteBuffer u = ByteBuffer.allocateDirect(cw * ch);
+        ByteBuffer v = ByteBuffer.allocateDirect(cw * ch);
+        for (int y = 0; y < ch; y++) {
+            for (int x = 0; x < cw; x++) {
+                u.put(y * cw + x, uAt(x, y));
+                v.put(y * cw + x, vAt(x, y));
+            }
+        }
+        YuvPlanes planes = new YuvPlanes().set(WIDTH, HEIGHT, lumaPlane(WIDTH), WIDTH, 1, u, v, cw, 1);
+
+        // 6x4 halves to 2x2 (widths are rounded down to even), i.e. one chroma pair.
+        assertEquals(2, YuvConverter.scaledDimension(WIDTH, 2));
+        byte[] out = new byte[YuvConverter.nv21Size(2, 2)];
+        YuvConverter.convertToNV21Scaled(planes, 2, out);
+        assertArrayEquals(new byte[]{lumaAt(0, 0), lumaAt(2, 0), lumaAt(0, 2), lumaAt(2, 2), vAt(0, 0), uAt(0, 0)}, out);
+    }
+
+    @Test
+    public void boxFilterAveragesLumaAndChroma() {
+        // An 8x4 frame of constant chroma whose luma alternates 10/20 on every pixel.
+        int width = 8;
+        int height = 4;
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        for (int i = 0; i < width * height; i++) {
+            y.put(i, (byte) ((i % 2 == 0) ? 10 : 20));
+        }
+        ByteBuffer u = ByteBuffer.allocateDirect(width * height / 4);
+        ByteBuffer v = ByteBuffer.allocateDirect(width * height / 4);
+        for (int i = 0; i < width * height / 4; i++) {
+            u.put(i, (byte) 0x80);
+            v.put(i, (byte) (i % 2 == 0 ? 0xF0 : 0xF2));
+        }
+        YuvPlanes planes = new YuvPlanes().set(width, height, y, width, 1, u, v, width / 2, 1);
+
+        byte[] out = new byte[YuvConverter.nv21Size(4, 2)];
+        YuvConverter.convertToNV21Scaled(planes, 2, YuvConverter.FILTER_BOX, out);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(15, out[i]);
+        }
+        assertEquals((byte) 0xF1, out[8]);
+        assertEquals((byte) 0x80, out[9]);
+    }
+
+    private static byte pixelAt(int x, int y) {
+        return (byte) (x * 7 + y * 31);
+    }
+
+    /**
+     * Returns a luma-only frame whose rows are {@code rowStride} bytes apart and whose pixels are
+     * {@code pixelStride} bytes apart, with the padding between them filled with 0xEE.
+     */
+    private static YuvPlanes lumaOnlyPlanes(int width, int height, int rowStride, int pixelStride) {
+        ByteBuffer y = ByteBuffer.allocateDirect(rowStride * height);
+        for (int i = 0; i < y.capacity(); i++) {
+            y.put(i, (byte) 0xEE);
+        }
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                y.put(row * rowStride + col * pixelStride, pixelAt(col, row));
+            }
+        }
+        return new YuvPlanes().setLuma(width, height, y, rowStride, pixelStride);
+    }
+
+    private static byte[] convertLuma(YuvPlanes planes, int factor, int filter, int size) {
+        // One spare byte checks that nothing is written past the frame.
+        byte[] out = new byte[size + 1];
+        out[size] = 0x55;
+        YuvConverter.convertLumaScaled(planes, factor, filter, out);
+        assertEquals(0x55, out[size]);
+        return Arrays.copyOf(out, size);
+    }
+
+    @Test
+    public void lumaOnlyCopiesPaddedAndInterleavedRows() {
+        // An odd frame size is kept as is when not scaled.
+        int width = 7;
+        int height = 5;
+        byte[] expected = new byte[width * height];
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                expected[row * width + col] = pixelAt(col, row);
+            }
+        }
+        for (int pixelStride = 1; pixelStride <= 2; pixelStride++) {
+            for (int padding = 0; padding <= 3; padding += 3) {
+                YuvPlanes planes = lumaOnlyPlanes(width, height, width * pixelStride + padding, pixelStride);
+                assertArrayEquals("pixel stride " + pixelStride + ", padding " + padding, expected,
+                        convertLuma(planes, 1, YuvConverter.FILTER_NEAREST, width * height));
+            }
+        }
+    }
+
+    @Test
+    public void lumaOnlySamplesEveryFactorthPixelOfEvenOutput() {
+        // 13x7 reduced by 3 is 4x2: widths and heights are rounded down to even.
+        int width = 13;
+        int height = 7;
+        int factor = 3;
+        int outWidth = YuvConverter.scaledDimension(width, factor);
+        int outHeight = YuvConverter.scaledDimension(height, factor);
+        assertEquals(4, outWidth);
+        assertEquals(2, outHeight);
+        byte[] expected = new byte[outWidth * outHeight];
+        for (int row = 0; row < outHeight; row++) {
+            for (int col = 0; col < outWidth; col++) {
+                expected[row * outWidth + col] = pixelAt(col * factor, row * factor);
+            }
+        }
+        for (int pixelStride = 1; pixelStride <= 2; pixelStride++) {
+            YuvPlanes planes = lumaOnlyPlanes(width, height, width * pixelStride + 5, pixelStride);
+            assertArrayEquals("pixel stride " + pixelStride, expected,
+                    convertLuma(planes, factor, YuvConverter.FILTER_NEAREST, outWidth * outHeight));
+        }
+    }
+
+    @Test
+    public void lumaOnlyBoxFilterAveragesBlocksAndMatchesNV21Luma() {
+        int width = 12;
+        int height = 8;
+        int factor = 2;
+        YuvPlanes planes = lumaOnlyPlanes(width, height, width + 4, 1);
+        int outWidth = width / factor;
+        int outHeight = height / factor;
+        byte[] actual = convertLuma(planes, factor, YuvConverter.FILTER_BOX, outWidth * outHeight);
+        for (int row = 0; row < outHeight; row++) {
+            for (int col = 0; col < outWidth; col++) {
+                int sum = 0;
+                for (int dy = 0; dy < factor; dy++) {
+                    for (int dx = 0; dx < factor; dx++) {
+                        sum += pixelAt(col * factor + dx, row * factor + dy) & 0xFF;
+                    }
+                }
+                assertEquals("(" + col + ", " + row + ")", (byte) ((sum + 2) / 4), actual[row * outWidth + col]);
+            }
+        }
+
+        // The luma part of a full conversion of the same frame is identical.
+        ByteBuffer chroma = ByteBuffer.allocateDirect(width * height / 4);
+        planes.set(width, height, planes.y, planes.yRowStride, 1, chroma, chroma, width / 2, 1);
+        byte[] nv21 = new byte[YuvConverter.nv21Size(outWidth, outHeight)];
+        YuvConverter.convertToNV21Scaled(planes, factor, YuvConverter.FILTER_BOX, nv21);
+        assertArrayEquals(actual, Arrays.copyOf(nv21, outWidth * outHeight));
+    }
+
+    @Test
+    public void parallelStripesMatchSerial() {
+        int width = 64;
+        int height = 48;
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        ByteBuffer chroma = ByteBuffer.allocateDirect(width * height / 2);
+        for (int i = 0; i < width * height; i++) {
+            y.put(i, (byte) (i * 7));
+        }
+        for (int i = 0; i < width * height / 2; i++) {
+            chroma.put(i, (byte) (i * 13));
+        }
+        chroma.position(1);
+        ByteBuffer v = chroma.slice();
+        chroma.position(0);
+        ByteBuffer u = chroma.slice();
+        YuvPlanes planes = new YuvPlanes().set(width, height, y, width, 1, u, v, width, 2);
+
+        ParallelYuvConverter parallel = new ParallelYuvConverter(3, 0);
+        for (int factor = 1; factor <= 4; factor *= 2) {
+            for (int filter = YuvConverter.FILTER_NEAREST; filter <= YuvConverter.FILTER_BOX; filter++) {
+                int size = YuvConverter.nv21Size(YuvConverter.outputWidth(planes, factor), YuvConverter.outputHeight(planes, factor));
+                byte[] expected = new byte[size];
+                byte[] actual = new byte[size];
+                YuvConverter.convertToNV21Scaled(planes, factor, filter, expected);
+                parallel.convertToNV21Scaled(planes, factor, filter, ByteBuffer.wrap(actual));
+                assertArrayEquals(expected, actual);
+            }
+        }
+        parallel.shutdown();
+    }
+
+    @Test
+    public void poolRecyclesBySize() {
+        assertEquals(16, FrameBufferPool.sizeClass(16));
+        assertEquals(20, FrameBufferPool.sizeClass(17));
+        assertEquals(28, FrameBufferPool.sizeClass(25));
+
+        FrameBufferPool pool = new FrameBufferPool(2, 1);
+        ByteBuffer first = pool.acquire(16);
+        assertTrue(first.isDirect());
+        first.limit(4);
+        pool.release(first);
+        assertSame(first, pool.acquire(16));
+        assertEquals(16, first.limit());
+        assertNotSame(first, pool.acquire(16));
+        assertEquals(1, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+    }
+}